@@ -1,14 +1,67 @@
-
 // from java.util.Random
 class Fingerprint {
   final long m = (long) 0xFFFFFFFFFFFFL;
   final long a = 25214903917L;
   final long c = 11L;
+
+  // jumpA[k], jumpC[k] apply 2^k steps at once: seed -> (seed*jumpA[k] + jumpC[k]) & m
+  static final long[] jumpA = new long[64];
+  static final long[] jumpC = new long[64];
+
+  // when set (-DverifyFingerprint=true), every fingerprint is computed both ways and the results are compared
+  static boolean verify = Boolean.getBoolean("verifyFingerprint");
+
+  static {
+    final long m = 0xFFFFFFFFFFFFL;
+    jumpA[0] = 25214903917L;
+    jumpC[0] = 11L;
+    for( int k = 1; k < 64; k++ ) {
+      jumpA[k] = (jumpA[k-1]*jumpA[k-1]) & m;
+      jumpC[k] = (jumpA[k-1]*jumpC[k-1] + jumpC[k-1]) & m;
+    }
+  }
+
+  // O(log iterations) jump-ahead over the binary digits of iterations
   long getFingerprint(long iterations, long startSeed) {
+    long seed = startSeed;
+    if( iterations > 0 ) {
+      seed &= m;
+      int k = 0;
+      for(long n = iterations; n != 0; n >>>= 1, k++) {
+        if( (n & 1) != 0 )
+          seed = (seed*jumpA[k] + jumpC[k]) & m;
+      }
+    }
+    long fingerprint = ( seed >> 12 );
+    if( verify && fingerprint != getFingerprintSerial(iterations, startSeed) )
+      throw new IllegalStateException("Fingerprint mismatch for seed " + startSeed);
+    return fingerprint;
+  }
+
+  long getFingerprintSerial(long iterations, long startSeed) {
     long seed = startSeed;
     for(long i = 0; i < iterations; i++) {
       seed = (seed*a + c) & m;
     }
     return ( seed >> 12 );
   }
-}
\ No newline at end of file
+}
+
+class FingerprintTest {
+  public static void main(String[] args) {
+    final int numTrials = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    Fingerprint fingerprint = new Fingerprint();
+    java.util.Random rand = new java.util.Random(1);
+    for( int i = 0; i < numTrials; i++ ) {
+      long iterations = rand.nextInt(20000) - 10;
+      long seed = rand.nextLong();
+      long fast = fingerprint.getFingerprint(iterations, seed);
+      long slow = fingerprint.getFingerprintSerial(iterations, seed);
+      if( fast != slow ) {
+        System.out.println("MISMATCH: iterations=" + iterations + " seed=" + seed + " " + fast + " != " + slow);
+        return;
+      }
+    }
+    System.out.println("OK: " + numTrials + " fingerprints match");
+  }
+}
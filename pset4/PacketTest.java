@@ -55,6 +55,7 @@ class ParallelPacket {
       final int queueDepth = Integer.parseInt(args[5]);
       final int lockType = Integer.parseInt(args[6]);
       final short strategy = Short.parseShort(args[7]);
+      final int batchSize = Integer.getInteger("batchSize", 1); // -DbatchSize=: packets per enqueue/dequeue
 
       @SuppressWarnings({"unchecked"})
 
@@ -77,12 +78,16 @@ class ParallelPacket {
       }
 
       // Allocate and initialize Dispatcher and Worker threads
-      Dispatcher dispatchData = new Dispatcher(done, queues, pkt, numSources, uniformFlag);
-      Thread dispatchThread = new Thread(dispatchData);
+      List<IdleStrategy> idles = new ArrayList<>();
+      for (int i = 0; i < numSources; i++)
+        idles.add(IdleStrategy.fromProperties());
+      Dispatcher dispatchData = new Dispatcher(done, queues, pkt, numSources, uniformFlag, batchSize, idles);
+      Thread dispatchThread = WorkerThreads.newThread(dispatchData);
       List<Thread> workerThreads = new ArrayList<>();
       for (int i = 0; i < numSources; i++) {
-        PacketWorker workerData = new ParallelPacketWorker(i, done, queues, locks, numSources, strategy);
-        Thread workerThread = new Thread(workerData);
+        PacketWorker workerData = new ParallelPacketWorker(i, done, queues, locks, numSources, strategy, batchSize,
+            idles.get(i));
+        Thread workerThread = WorkerThreads.newThread(workerData);
         workerThreads.add(workerThread);
       }
 
@@ -127,6 +132,8 @@ class ParallelPacket {
       System.out.println("count:\t" + totalCount);
       System.out.println("time:\t" + timer.getElapsedTime());
       System.out.println("thrpt:\t" + totalCount / timer.getElapsedTime() + " pkts / ms");
+      System.out.println(IdleStrategy.report(idles, timer.getElapsedTime()));
+      System.out.println(WorkerThreads.describe());
     } catch (ArrayIndexOutOfBoundsException e) {
       System.out.println("ERROR: java ParallelPacket [numMilliseconds] [numSources] [mean] [uniformFlag] " +
                          "[experimentNumber] [queueDepth] [lockType] [strategy]");
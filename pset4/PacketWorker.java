@@ -1,5 +1,6 @@
 import java.util.Random;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 public interface PacketWorker extends Runnable {
     public void run();
@@ -50,21 +51,43 @@ class Dispatcher implements PacketWorker {
     // Parameters
     private final int numSources;
     private final boolean uniformBool;
+    private final int batchSize;
+    private final List<IdleStrategy> idles;
 
     public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
                       List<WaitFreeQueue<Packet>> queues,
                       PacketSource pkt,
                       int numSources,
                       boolean uniformBool) {
+        this(done, queues, pkt, numSources, uniformBool, 1, null);
+    }
+
+    /**
+     * @param batchSize number of packets handed to a queue at once; 1 enqueues packets one at a time
+     * @param idles idle strategies of the workers reading the queues, woken when handed packets, or null
+     */
+    public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
+                      List<WaitFreeQueue<Packet>> queues,
+                      PacketSource pkt,
+                      int numSources,
+                      boolean uniformBool,
+                      int batchSize,
+                      List<IdleStrategy> idles) {
         this.done = done;
         this.queues = queues;
         this.pkt = pkt;
         this.numSources = numSources;
         this.uniformBool = uniformBool;
+        this.batchSize = batchSize;
+        this.idles = idles;
         assert numSources == queues.size();
     }
 
     public void run() {
+        if (batchSize > 1) {
+            runBatched();
+            return;
+        }
         Packet packet;
         while (!done.value) {
             // Add a packet to each queue
@@ -73,15 +96,53 @@ class Dispatcher implements PacketWorker {
                 while (true) {
                     try {
                         queues.get(i).enq(packet);
+                        wake(i);
                         totalPackets++;
                         break;
                     } catch (FullException e) {
+                        awaitRoom(i);
                         continue; // Try again until it's not full
                     }
                 }
             }
         }
     }
+
+    /**
+     * Hands each queue in turn a batch of packets from its source, publishing as much of it as fits with
+     * one store. Every source still delivers the same number of packets.
+     */
+    private void runBatched() {
+        Packet[] batch = new Packet[batchSize];
+        while (!done.value) {
+            for (int i = 0; i < numSources; i++) {
+                for (int j = 0; j < batchSize; j++)
+                    batch[j] = uniformBool ? pkt.getUniformPacket(i) : pkt.getExponentialPacket(i);
+                int numPending = batchSize;
+                while (numPending > 0 && !done.value) {
+                    int numEnqueued = queues.get(i).enqBatch(batch, numPending);
+                    if (numEnqueued > 0) {
+                        wake(i);
+                        totalPackets += numEnqueued;
+                        numPending -= numEnqueued;
+                        System.arraycopy(batch, numEnqueued, batch, 0, numPending);
+                    } else {
+                        awaitRoom(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void wake(int i) {
+        if (idles != null)
+            idles.get(i).wake();
+    }
+
+    private void awaitRoom(int i) {
+        if (idles != null)
+            idles.get(i).awaitRoom();
+    }
 }
 
 
@@ -107,6 +168,8 @@ class ParallelPacketWorker implements PacketWorker {
     // Parameters
     private final int numSources;
     private final Strategy strategy;
+    private final int batchSize;
+    private final IdleStrategy idle;
 
     public ParallelPacketWorker(int threadID,
                                 PaddedPrimitiveNonVolatile<Boolean> done,
@@ -114,7 +177,25 @@ class ParallelPacketWorker implements PacketWorker {
                                 List<Lock> locks,
                                 int numSources,
                                 short strategy) {
+        this(threadID, done, queues, locks, numSources, strategy, 1,
+                new IdleStrategy(IdleStrategy.Mode.Spin, 0, 0, 0, 0));
+    }
+
+    /**
+     * @param batchSize number of packets dequeued at once by the LockFree strategy; 1 dequeues one at a time
+     * @param idle what the worker does after finding no packet; the dispatcher wakes it when filling its queue
+     */
+    public ParallelPacketWorker(int threadID,
+                                PaddedPrimitiveNonVolatile<Boolean> done,
+                                List<WaitFreeQueue<Packet>> queues,
+                                List<Lock> locks,
+                                int numSources,
+                                short strategy,
+                                int batchSize,
+                                IdleStrategy idle) {
         this.threadID = threadID;
+        this.batchSize = batchSize;
+        this.idle = idle;
         this.done = done;
         this.queues = queues;
         this.locks = locks;
@@ -134,7 +215,10 @@ class ParallelPacketWorker implements PacketWorker {
     public void run() {
         switch (strategy) {
             case LockFree:
-                runLockFree();
+                if (batchSize > 1)
+                    runLockFreeBatched();
+                else
+                    runLockFree();
                 break;
             case HomeQueue:
                 runHomeQueue();
@@ -149,6 +233,7 @@ class ParallelPacketWorker implements PacketWorker {
                 break;
         }
         cleanUp();
+        idle.finish();
     }
 
     /**
@@ -208,23 +293,60 @@ class ParallelPacketWorker implements PacketWorker {
 
     private void runLockFree() {
         WaitFreeQueue<Packet> queue = queues.get(threadID);
+        BooleanSupplier hasWork = () -> queue.size() > 0;
         while (!done.value) {
             try {
                 Packet pkt = queue.deq();
+                idle.reset();
                 processPacket(pkt);
             } catch (EmptyException e) {
+                idle.idle(hasWork);
+            }
+        }
+    }
+
+    private void runLockFreeBatched() {
+        WaitFreeQueue<Packet> queue = queues.get(threadID);
+        BooleanSupplier hasWork = () -> queue.size() > 0;
+        Packet[] batch = new Packet[batchSize];
+        while (!done.value) {
+            int n = queue.deqBatch(batch, batchSize);
+            if (n == 0) {
+                idle.idle(hasWork);
                 continue;
             }
+            idle.reset();
+            for (int i = 0; i < n; i++)
+                processPacket(batch[i]);
+        }
+    }
+
+    /**
+     * @param start queue the sweep starts after
+     * @return the first queue after start, wrapping around to start itself, that holds packets, or -1 if every
+     *         queue is empty
+     */
+    private int nextNonEmpty(int start) {
+        for (int k = 1; k <= numSources; k++) {
+            int id = start + k < numSources ? start + k : start + k - numSources;
+            if (queues.get(id).size() > 0)
+                return id;
         }
+        return -1;
     }
 
     private void runHomeQueue() {
         WaitFreeQueue<Packet> queue = queues.get(threadID);
         Lock lock = locks.get(threadID);
+        BooleanSupplier hasWork = () -> queue.size() > 0;
         while (!done.value) {
             Packet pkt = deq(queue, lock);
-            if (pkt != null)
+            if (pkt != null) {
+                idle.reset();
                 processPacket(pkt);
+            } else {
+                idle.idle(hasWork);
+            }
         }
     }
 
@@ -232,16 +354,27 @@ class ParallelPacketWorker implements PacketWorker {
         Random rand = new Random();
         WaitFreeQueue<Packet> queue;
         Lock lock;
+        // Idle only once no queue has packets, since any of them can feed this worker
+        BooleanSupplier hasWork = () -> nextNonEmpty(threadID) >= 0;
         while (!done.value) {
-            // Choose a random queue
+            // Choose a random queue, or the next one with packets if it is empty
             int id = rand.nextInt(numSources);
+            if (queues.get(id).size() == 0) {
+                id = nextNonEmpty(id);
+                if (id < 0) {
+                    idle.idle(hasWork);
+                    continue;
+                }
+            }
             queue = queues.get(id);
             lock = locks.get(id);
 
             // Try to dequeue and process the packet
             Packet pkt = deq(queue, lock);
-            if (pkt != null)
+            if (pkt != null) {
+                idle.reset();
                 processPacket(pkt);
+            }
         }
     }
 
@@ -251,6 +384,9 @@ class ParallelPacketWorker implements PacketWorker {
         WaitFreeQueue<Packet> queue;
         Lock lock;
 
+        // Idle only once no queue has packets, since any of them can feed this worker
+        BooleanSupplier hasWork = () -> nextNonEmpty(threadID) >= 0;
+
         // Choose a random uncontended queue
         id = pickUncontendedID(rand);
         lock = locks.get(id);
@@ -258,10 +394,15 @@ class ParallelPacketWorker implements PacketWorker {
         while (!done.value) {
             Packet pkt = deq(queue, lock);
             if (pkt != null) {
+                idle.reset();
                 processPacket(pkt);
             } else {
-                // Pick another random uncontended queue
-                id = pickUncontendedID(rand);
+                // Move on to the next queue with packets, or idle and pick another random uncontended queue
+                id = nextNonEmpty(id);
+                if (id < 0) {
+                    idle.idle(hasWork);
+                    id = pickUncontendedID(rand);
+                }
                 lock = locks.get(id);
                 queue = queues.get(id);
             }
@@ -57,6 +57,8 @@ class ParallelHashPacket {
     final int numWorkers = Integer.parseInt(args[7]); 
     final String tableType = args[8];
     final int queueDepth = 8;
+    final int batchSize = Integer.getInteger("batchSize", 1); // -DbatchSize=: packets per enqueue/dequeue
+    final int queueStrategy = Integer.getInteger("queueStrategy", 0); // -DqueueStrategy=: 0 LockFree, 1 RandomQueue, 2 LastQueue
     final int logSize;
 
     if (args.length > 9) {
@@ -111,12 +113,16 @@ class ParallelHashPacket {
     }
 
     // Allocate and initialize Dispatcher and Worker threads
-    HashPacketDispatcher dispatchData = new HashPacketDispatcher(done, queues, source, numWorkers);
-    Thread dispatchThread = new Thread(dispatchData);
+    List<IdleStrategy> idles = new ArrayList<>();
+    for (int i = 0; i < numWorkers; i++)
+      idles.add(IdleStrategy.fromProperties());
+    HashPacketDispatcher dispatchData = new HashPacketDispatcher(done, queues, source, numWorkers, batchSize, idles);
+    Thread dispatchThread = WorkerThreads.newThread(dispatchData);
     List<Thread> workerThreads = new ArrayList<>();
     for (int i = 0; i < numWorkers; i++) {
-      HashPacketWorker workerData = new ParallelHashPacketWorker(i, done, queues, locks, table, numWorkers);
-      Thread workerThread = new Thread(workerData);
+      HashPacketWorker workerData = new ParallelHashPacketWorker(i, done, queues, locks, table, numWorkers, batchSize,
+          idles.get(i), queueStrategy);
+      Thread workerThread = WorkerThreads.newThread(workerData);
       workerThreads.add(workerThread);
     }
 
@@ -156,5 +162,7 @@ class ParallelHashPacket {
     // Report the total number of packets processed and total time
     final long totalCount = dispatchData.totalPackets;
     System.out.println("PKT_PER_MS " + totalCount / timer.getElapsedTime() + " PKT_PER_MS");
+    System.out.println(IdleStrategy.report(idles, timer.getElapsedTime()));
+    System.out.println(WorkerThreads.describe());
   }
 }
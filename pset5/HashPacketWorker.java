@@ -1,6 +1,7 @@
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.List;
 import java.util.Random;
+import java.util.function.BooleanSupplier;
 
 public interface HashPacketWorker<T> extends Runnable {
   public void run();
@@ -15,19 +16,40 @@ class HashPacketDispatcher implements HashPacketWorker {
 
   // Parameters
   private final int numWorkers;
+  private final int batchSize;
+  private final List<IdleStrategy> idles;
 
   public HashPacketDispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
                               List<WaitFreeQueue<HashPacket<Packet>>> queues,
                               HashPacketGenerator source,
                               int numWorkers) {
+    this(done, queues, source, numWorkers, 1, null);
+  }
+
+  /**
+   * @param batchSize number of packets handed to a queue at once; 1 enqueues packets one at a time
+   * @param idles idle strategies of the workers reading the queues, woken when handed packets, or null
+   */
+  public HashPacketDispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
+                              List<WaitFreeQueue<HashPacket<Packet>>> queues,
+                              HashPacketGenerator source,
+                              int numWorkers,
+                              int batchSize,
+                              List<IdleStrategy> idles) {
     this.done = done;
     this.queues = queues;
     this.source = source;
     this.numWorkers = numWorkers;
+    this.batchSize = batchSize;
+    this.idles = idles;
     assert numWorkers == queues.size();
   }
 
   public void run() {
+    if (batchSize > 1) {
+      runBatched();
+      return;
+    }
     HashPacket<Packet> pkt;
     while (!done.value) {
       // Add a packet to each queue
@@ -36,15 +58,53 @@ class HashPacketDispatcher implements HashPacketWorker {
         while (true) {
           try {
             queues.get(i).enq(pkt);
+            wake(i);
             totalPackets++;
             break;
           } catch (FullException e) {
+            awaitRoom(i);
             continue; // Try again until it's not full
           }
         }
       }
     }
   }
+
+  /**
+   * Hands each queue in turn a whole batch of packets, publishing as much of it as fits with one store.
+   */
+  @SuppressWarnings("unchecked")
+  private void runBatched() {
+    HashPacket<Packet>[] batch = (HashPacket<Packet>[]) new HashPacket<?>[batchSize];
+    while (!done.value) {
+      for (int i = 0; i < numWorkers; i++) {
+        for (int j = 0; j < batchSize; j++)
+          batch[j] = source.getRandomPacket();
+        int numPending = batchSize;
+        while (numPending > 0 && !done.value) {
+          int numEnqueued = queues.get(i).enqBatch(batch, numPending);
+          if (numEnqueued > 0) {
+            wake(i);
+            totalPackets += numEnqueued;
+            numPending -= numEnqueued;
+            System.arraycopy(batch, numEnqueued, batch, 0, numPending);
+          } else {
+            awaitRoom(i);
+          }
+        }
+      }
+    }
+  }
+
+  private void wake(int i) {
+    if (idles != null)
+      idles.get(i).wake();
+  }
+
+  private void awaitRoom(int i) {
+    if (idles != null)
+      idles.get(i).awaitRoom();
+  }
 }
 
 class SerialHashPacketWorker implements HashPacketWorker {
@@ -94,6 +154,10 @@ class ParallelHashPacketWorker implements HashPacketWorker {
   private final HashTable<Packet> table;
   private final int numWorkers;
 
+  private final int batchSize;
+  private final IdleStrategy idle;
+  private final int queueStrategy;
+
   // Statistics
   private final Fingerprint fingerprint = new Fingerprint();
   long totalPackets = 0;
@@ -105,30 +169,96 @@ class ParallelHashPacketWorker implements HashPacketWorker {
                                   List<ReentrantLock> locks,
                                   HashTable<Packet> table,
                                   int numWorkers) {
+    this(threadID, done, queues, locks, table, numWorkers, 1,
+        new IdleStrategy(IdleStrategy.Mode.Spin, 0, 0, 0, 0));
+  }
+
+  /**
+   * @param batchSize number of packets dequeued at once; 1 dequeues one at a time
+   * @param idle what the worker does while its queue is empty
+   */
+  public ParallelHashPacketWorker(int threadID,
+                                  PaddedPrimitiveNonVolatile<Boolean> done,
+                                  List<WaitFreeQueue<HashPacket<Packet>>> queues,
+                                  List<ReentrantLock> locks,
+                                  HashTable<Packet> table,
+                                  int numWorkers,
+                                  int batchSize,
+                                  IdleStrategy idle) {
+    this(threadID, done, queues, locks, table, numWorkers, batchSize, idle, 0);
+  }
+
+  /**
+   * @param queueStrategy 0 = LockFree, 1 = RandomQueue, 2 = LastQueue
+   */
+  public ParallelHashPacketWorker(int threadID,
+                                  PaddedPrimitiveNonVolatile<Boolean> done,
+                                  List<WaitFreeQueue<HashPacket<Packet>>> queues,
+                                  List<ReentrantLock> locks,
+                                  HashTable<Packet> table,
+                                  int numWorkers,
+                                  int batchSize,
+                                  IdleStrategy idle,
+                                  int queueStrategy) {
     this.threadID = threadID;
     this.done = done;
     this.queues = queues;
     this.locks = locks;
     this.table = table;
     this.numWorkers = numWorkers;
+    this.batchSize = batchSize;
+    this.idle = idle;
+    this.queueStrategy = queueStrategy;
     assert 0 <= threadID && threadID < queues.size();
   }
 
   public void run() {
-    runLockFree();
+    switch (queueStrategy) {
+      case 1:
+        runRandomQueue();
+        break;
+      case 2:
+        runLastQueue();
+        break;
+      default:
+        if (batchSize > 1)
+          runLockFreeBatched();
+        else
+          runLockFree();
+    }
     cleanUp();
+    idle.finish();
   }
 
   private void runLockFree() {
     WaitFreeQueue<HashPacket<Packet>> queue = queues.get(threadID);
+    BooleanSupplier hasWork = () -> queue.size() > 0;
     while (!done.value) {
       try {
         HashPacket<Packet> pkt = queue.deq();
+        idle.reset();
         if (pkt != null)
           processPacket(pkt);
       } catch (EmptyException e) {
+        idle.idle(hasWork);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void runLockFreeBatched() {
+    WaitFreeQueue<HashPacket<Packet>> queue = queues.get(threadID);
+    HashPacket<Packet>[] batch = (HashPacket<Packet>[]) new HashPacket<?>[batchSize];
+    BooleanSupplier hasWork = () -> queue.size() > 0;
+    while (!done.value) {
+      int n = queue.deqBatch(batch, batchSize);
+      if (n == 0) {
+        idle.idle(hasWork);
         continue;
       }
+      idle.reset();
+      for (int i = 0; i < n; i++)
+        processPacket(batch[i]);
     }
   }
 
@@ -136,16 +266,27 @@ class ParallelHashPacketWorker implements HashPacketWorker {
     Random rand = new Random();
     WaitFreeQueue<HashPacket<Packet>> queue;
     ReentrantLock lock;
+    // Idle only once no queue has packets, since any of them can feed this worker
+    BooleanSupplier hasWork = () -> nextNonEmpty(threadID) >= 0;
     while (!done.value) {
-      // Choose a random queue
+      // Choose a random queue, or the next one with packets if it is empty
       int id = rand.nextInt(numWorkers);
+      if (queues.get(id).size() == 0) {
+        id = nextNonEmpty(id);
+        if (id < 0) {
+          idle.idle(hasWork);
+          continue;
+        }
+      }
       queue = queues.get(id);
       lock = locks.get(id);
 
       // Try to dequeue and process the packet
       HashPacket<Packet> pkt = deq(queue, lock);
-      if (pkt != null)
+      if (pkt != null) {
+        idle.reset();
         processPacket(pkt);
+      }
     }
   }
 
@@ -155,6 +296,9 @@ class ParallelHashPacketWorker implements HashPacketWorker {
     WaitFreeQueue<HashPacket<Packet>> queue;
     ReentrantLock lock;
 
+    // Idle only once no queue has packets, since any of them can feed this worker
+    BooleanSupplier hasWork = () -> nextNonEmpty(threadID) >= 0;
+
     // Choose a random uncontended queue
     id = pickUncontendedID(rand);
     queue = queues.get(id);
@@ -162,16 +306,35 @@ class ParallelHashPacketWorker implements HashPacketWorker {
     while (!done.value) {
       HashPacket<Packet> pkt = deq(queue, lock);
       if (pkt != null) {
+        idle.reset();
         processPacket(pkt);
       } else {
-        // Pick another random uncontended queue
-        id = pickUncontendedID(rand);
+        // Move on to the next queue with packets, or idle and pick another random uncontended queue
+        id = nextNonEmpty(id);
+        if (id < 0) {
+          idle.idle(hasWork);
+          id = pickUncontendedID(rand);
+        }
         lock = locks.get(id);
         queue = queues.get(id);
       }
     }
   }
 
+  /**
+   * @param start queue the sweep starts after
+   * @return the first queue after start, wrapping around to start itself, that holds packets, or -1 if every
+   *         queue is empty
+   */
+  private int nextNonEmpty(int start) {
+    for (int k = 1; k <= numWorkers; k++) {
+      int id = start + k < numWorkers ? start + k : start + k - numWorkers;
+      if (queues.get(id).size() > 0)
+        return id;
+    }
+    return -1;
+  }
+
   /**
    * Grabs the lock and tries to dequeue a packet.
    * @param queue a wait-free queue
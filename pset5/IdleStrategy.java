@@ -0,0 +1,173 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * What a worker does when it finds its queue empty.
+ * Spin: retries right away, burning its core until work shows up
+ * Backoff: spins, then spins with Thread.onSpinWait(), then yields, and finally parks until a producer
+ *          calls wake() after handing it work, or until parkNanos pass so it still notices the done signal
+ * Block: parks right away, as on a blocking channel, so many more workers than cores (or virtual threads
+ *        sharing a few carriers) can wait for work without stealing each other's CPU
+ *
+ * Each worker owns one instance, which also keeps its parking statistics and the CPU time it used.
+ */
+class IdleStrategy {
+
+    public enum Mode {
+        Spin,
+        Backoff,
+        Block
+    }
+
+    final Mode mode;
+    final int spins;
+    final int spinWaits;
+    final int yields;
+    final long parkNanos;
+    private int idleRounds = 0;
+
+    // Set by the owner while it may be parked, read by its producers: the dispatcher, or every classifier
+    // feeding a fingerprint worker. The first producer to wake a parked owner stamps wakeRequested.
+    private volatile Thread parked = null;
+    private final AtomicLong wakeRequested = new AtomicLong(0);
+
+    // Statistics
+    long numParks = 0;
+    long numWakeups = 0;
+    long wakeupNanos = 0;
+    long maxWakeupNanos = 0;
+    long cpuNanos = -1;
+
+    public IdleStrategy(Mode mode, int spins, int spinWaits, int yields, long parkNanos) {
+        this.mode = mode;
+        this.spins = spins;
+        this.spinWaits = spinWaits;
+        this.yields = yields;
+        this.parkNanos = parkNanos;
+    }
+
+    /**
+     * -Didle=Spin|Backoff|Block picks the mode, and -DidleSpins=, -DidleSpinWaits=, -DidleYields= and -DparkMicros=
+     * tune the Backoff phases. A blocked worker is always woken when handed work, so its park only times out to
+     * notice the done signal, and by default lasts much longer.
+     */
+    public static IdleStrategy fromProperties() {
+        final Mode mode = Mode.valueOf(System.getProperty("idle", "Spin"));
+        return new IdleStrategy(mode,
+                Integer.getInteger("idleSpins", 64),
+                Integer.getInteger("idleSpinWaits", 1024),
+                Integer.getInteger("idleYields", 64),
+                1000L * Integer.getInteger("parkMicros", mode == Mode.Block ? 10000 : 100));
+    }
+
+    /**
+     * Owner only. Called after finding work.
+     */
+    public void reset() {
+        idleRounds = 0;
+    }
+
+    /**
+     * Owner only. Called after finding no work.
+     * @param hasWork checked again after the owner announces it is parking, so a wake() racing with the park
+     *                is never lost
+     */
+    public void idle(BooleanSupplier hasWork) {
+        if (mode == Mode.Spin)
+            return;
+        if (mode == Mode.Block) {
+            park(hasWork);
+            return;
+        }
+        final int round = idleRounds;
+        if (round < spins) {
+            idleRounds++;
+        } else if (round < spins + spinWaits) {
+            idleRounds++;
+            Thread.onSpinWait();
+        } else if (round < spins + spinWaits + yields) {
+            idleRounds++;
+            Thread.yield();
+        } else {
+            park(hasWork);
+        }
+    }
+
+    private void park(BooleanSupplier hasWork) {
+        parked = Thread.currentThread();
+        if (!hasWork.getAsBoolean()) {
+            numParks++;
+            LockSupport.parkNanos(this, parkNanos);
+        }
+        parked = null;
+        final long requested = wakeRequested.getAndSet(0);
+        if (requested != 0) {
+            final long latency = System.nanoTime() - requested;
+            numWakeups++;
+            wakeupNanos += latency;
+            maxWakeupNanos = Math.max(maxWakeupNanos, latency);
+        }
+    }
+
+    /**
+     * Producers only, any number of them. Called after handing the owner work; unparks it if it is parked.
+     */
+    public void wake() {
+        final Thread thread = parked;
+        if (thread != null) {
+            if (wakeRequested.get() == 0)
+                wakeRequested.compareAndSet(0, System.nanoTime());
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Producers only. Called after finding the owner's queue full. In Block mode it gives the core (or carrier)
+     * to the owner so it can make room; the other modes retry right away, as they always have.
+     */
+    public void awaitRoom() {
+        if (mode == Mode.Block)
+            Thread.yield();
+    }
+
+    /**
+     * Owner only. Records the CPU time the owner has used, once it is done.
+     */
+    public void finish() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            cpuNanos = bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            cpuNanos = -1;  // virtual threads
+        }
+    }
+
+    /**
+     * @param idles strategies of every worker, after the workers finished
+     * @param time wall-clock time of the experiment in milliseconds
+     * @return the workers' CPU time and wakeup statistics
+     */
+    public static String report(List<IdleStrategy> idles, double time) {
+        long cpuNanos = 0;
+        long numParks = 0;
+        long numWakeups = 0;
+        long wakeupNanos = 0;
+        long maxWakeupNanos = 0;
+        for (IdleStrategy idle : idles) {
+            cpuNanos += Math.max(0, idle.cpuNanos);
+            numParks += idle.numParks;
+            numWakeups += idle.numWakeups;
+            wakeupNanos += idle.wakeupNanos;
+            maxWakeupNanos = Math.max(maxWakeupNanos, idle.maxWakeupNanos);
+        }
+        final double cpuTime = cpuNanos / 1e6;
+        return String.format("Idle %s: workers used %.1f ms CPU in %.1f ms (%.2f cores), %d parks, %d wakeups, " +
+                        "%.1f us mean / %.1f us max wakeup latency", idles.get(0).mode, cpuTime, time,
+                cpuTime / time, numParks, numWakeups, numWakeups == 0 ? 0.0 : wakeupNanos / 1e3 / numWakeups,
+                maxWakeupNanos / 1e3);
+    }
+}
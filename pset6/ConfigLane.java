@@ -0,0 +1,119 @@
+package pset6;
+
+/**
+ * Carries config packets past the data queues, so a permission change does not wait behind every data packet
+ * already in flight.
+ *
+ * Dispatchers publish configs into a ring instead of queueing them, and stamp every data packet with the number
+ * of configs published before it. A worker about to check a data packet first makes sure every config up to the
+ * packet's stamp is applied, applying whatever is pending itself if no one else has yet. Configs are applied in
+ * publication order by one thread at a time, so a data packet always sees every config the dispatcher produced
+ * before it, and in particular the latest one for its own addresses.
+ */
+class ConfigLane {
+
+    private final Config[] configs;
+    private final long[] publishNanos;
+    private final int mask;
+    private final PSource png;
+    private final PDestination r;
+    private final VerdictCache cache;
+    private final Lock publishLock;  // serializes dispatchers of different shards
+    private final Lock applyLock;
+    private volatile long published = 0;
+    private volatile long applied = 0;
+
+    // Statistics, written under applyLock
+    final LatencyHistogram visibility = new LatencyHistogram();
+    long numBatches = 0;
+
+    /**
+     * @param capacity minimum number of configs published but not applied yet, rounded up to a power of two
+     * @param cache verdict cache to invalidate when permissions change, or null
+     * @param lockType lock of each side of the lane, as numbered by LockAllocator
+     */
+    public ConfigLane(int capacity, PSource png, PDestination r, VerdictCache cache, int lockType) {
+        final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.configs = new Config[size];
+        for (int i = 0; i < size; i++) {
+            configs[i] = new Config();
+        }
+        this.publishNanos = new long[size];
+        this.mask = size - 1;
+        this.png = png;
+        this.r = r;
+        this.cache = cache;
+        this.publishLock = LockAllocator.getLock(lockType);
+        this.applyLock = LockAllocator.getLock(lockType);
+    }
+
+    /**
+     * @return the number of configs published so far, which every data packet dispatched now must see applied
+     */
+    public long published() {
+        return published;
+    }
+
+    /**
+     * Dispatchers only. Copies a config into the lane, applying the pending ones first if the lane is full.
+     * @param config config to publish, which may be reused as soon as this returns
+     */
+    public void publish(Config config) {
+        publishLock.lock();
+        try {
+            final long seq = published;
+            while (seq - applied >= configs.length)
+                applyPending();
+            final int i = (int) seq & mask;
+            configs[i].set(config.address, config.personaNonGrata, config.acceptingRange, config.addressBegin,
+                    config.addressEnd);
+            publishNanos[i] = System.nanoTime();
+            published = seq + 1;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Returns once the first seq configs are applied, applying the pending ones if they are not.
+     * @param seq configs published before the data packet about to be checked
+     */
+    public void awaitApplied(long seq) {
+        if (applied < seq)
+            applyPending();
+    }
+
+    /**
+     * Applies every config published so far. Also called by the driver once the workers stopped, since configs
+     * published after the last data packet are otherwise never applied.
+     */
+    public void applyPending() {
+        applyLock.lock();
+        try {
+            final long end = published;
+            long seq = applied;
+            if (seq == end)
+                return;
+            for (; seq < end; seq++) {
+                final int i = (int) seq & mask;
+                final Config config = configs[i];
+                png.set(config.address, config.personaNonGrata);
+                r.set(config.address, config.addressBegin, config.addressEnd, config.acceptingRange);
+                if (cache != null) {
+                    cache.invalidate(config.address);
+                    cache.invalidate(config.addressEnd);
+                }
+                visibility.record(System.nanoTime() - publishNanos[i]);
+            }
+            applied = end;
+            numBatches++;
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Config lane: applied in " + numBatches + " batches, config-to-visibility " + visibility;
+    }
+}
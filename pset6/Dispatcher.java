@@ -1,39 +1,310 @@
 package pset6;
 
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 class Dispatcher implements FirewallWorker {
 
+    /**
+     * How the dispatcher picks the queue for each packet.
+     * FirstFit: the first queue with room, starting at queue 0
+     * RoundRobin: the queue after the last one picked
+     * LeastLoaded: the queue with the fewest packets
+     * PowerOfTwo: the less loaded of two random queues
+     * FlowAffinity: the queue owning the packet's (source, dest) flow, spilling over to at most maxSpill of
+     *               the following queues when it is full
+     */
+    public enum Placement {
+        FirstFit,
+        RoundRobin,
+        LeastLoaded,
+        PowerOfTwo,
+        FlowAffinity
+    }
+
     private final PaddedPrimitiveNonVolatile<Boolean> done;
     private final List<WaitFreeQueue<Packet>> queues;
-    private final PacketGenerator source;
+    private final List<SpscRing<Packet>> rings;
+    private final PacketSource source;
+    private final PacketPool pool;
+    private final List<IdleStrategy> idles;
+    private final ConfigLane lane;
     private final int numWorkers;
+    private final int batchSize;
+    private final Placement placement;
+    private final int maxSpill;
+    private final long sampleMask;
+    private int lastQueue = -1;
+    private long numGenerated = 0;
     long totalPackets = 0;
+    long spilledPackets = 0;
+    long lanePackets = 0;
+    final long[] queuePackets;
 
     public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
                                 List<WaitFreeQueue<Packet>> queues,
-                                PacketGenerator source,
+                                PacketSource source,
                                 int numWorkers) {
+        this(done, queues, null, source, null, numWorkers, 1, Placement.FirstFit, 0, null, -1, null);
+    }
+
+    /**
+     * @param rings SPSC rings to use instead of queues, one per worker, or null to use queues
+     * @param pool pool to fill packets from instead of allocating them, or null to allocate
+     * @param batchSize number of packets handed to a queue at once; 1 enqueues packets one at a time
+     * @param placement policy for picking the queue of each packet
+     * @param maxSpill number of queues after the owner a FlowAffinity packet may spill over to
+     * @param idles idle strategies of the workers reading the queues, woken when handed packets, or null
+     * @param latencySampleLog stamps one packet in 2^latencySampleLog with the time it is handed out, so the
+     *                         worker can record its latency; -1 stamps none
+     * @param lane lane to publish config packets to instead of queueing them, or null to queue them
+     */
+    public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
+                                List<WaitFreeQueue<Packet>> queues,
+                                List<SpscRing<Packet>> rings,
+                                PacketSource source,
+                                PacketPool pool,
+                                int numWorkers,
+                                int batchSize,
+                                Placement placement,
+                                int maxSpill,
+                                List<IdleStrategy> idles,
+                                int latencySampleLog,
+                                ConfigLane lane) {
         this.done = done;
         this.queues = queues;
+        this.rings = rings;
         this.source = source;
+        this.pool = pool;
+        this.idles = idles;
+        this.lane = lane;
         this.numWorkers = numWorkers;
+        this.batchSize = batchSize;
+        this.placement = placement;
+        this.maxSpill = Math.min(maxSpill, numWorkers - 1);
+        this.sampleMask = latencySampleLog < 0 ? -1 : (1L << latencySampleLog) - 1;
+        this.queuePackets = new long[numWorkers];
     }
 
     public void run() {
+        if (placement == Placement.FlowAffinity) {
+            runFlowAffinity();
+            return;
+        }
+        if (batchSize > 1 && rings == null) {
+            runBatched();
+            return;
+        }
+        // The loop below drops a packet whenever its queue is full, which would skew the mix of data packets
+        // against the configs a lane never drops
+        if (placement != Placement.FirstFit || rings != null || lane != null) {
+            runPlacement();
+            return;
+        }
         Packet pkt;
         while (!done.value) {
             // Add a packet to each queue
             for (int i = 0; i < numWorkers; i++) {
-                pkt = source.getPacket();
+                pkt = nextPacket();
+                stamp(pkt);
                 try {
                     queues.get(i).enq(pkt);
+                    wake(i);
                     totalPackets++;
+                    queuePackets[i]++;
                     break;
                 } catch (FullException e) {
+                    pkt.release();
+                    awaitRoom(i);
                     continue; // Try again until it's not full
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Offers each packet to the queue picked by the placement policy until one accepts it.
+     */
+    private void runPlacement() {
+        Packet pkt = null;
+        while (!done.value) {
+            if (pkt == null)
+                pkt = nextPacket();
+            int i = pickQueue();
+            if (offer(i, pkt)) {
+                totalPackets++;
+                queuePackets[i]++;
+                pkt = null;
+            } else {
+                awaitRoom(i);
+            }
+        }
+    }
+
+    /**
+     * Sends every packet of a flow to the same queue so its trains stay on one worker. If the owning queue is
+     * full, the packet spills over to the first of the next maxSpill queues with room; if those are full as
+     * well, it waits for the owner, so one hot flow cannot take over every queue. Packets go out one at a time
+     * whatever the batch size, since consecutive packets rarely share an owner.
+     */
+    private void runFlowAffinity() {
+        Packet pkt = null;
+        int owner = 0;
+        while (!done.value) {
+            if (pkt == null) {
+                pkt = nextPacket();
+                owner = ownerOf(pkt);
+            }
+            for (int k = 0; k <= maxSpill; k++) {
+                int i = (owner + k) % numWorkers;
+                if (offer(i, pkt)) {
+                    totalPackets++;
+                    queuePackets[i]++;
+                    if (k > 0)
+                        spilledPackets++;
+                    pkt = null;
+                    break;
+                }
+            }
+            if (pkt != null)
+                awaitRoom(owner);
+        }
+    }
+
+    /**
+     * @return the queue owning the packet's flow; config packets are owned by their address
+     */
+    private int ownerOf(Packet pkt) {
+        int h;
+        if (pkt.type == Packet.MessageType.DataPacket)
+            h = pkt.header.source * 0x9E3779B9 ^ pkt.header.dest;
+        else
+            h = pkt.config.address * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % numWorkers;
+    }
+
+    /**
+     * Hands the queue picked by the placement policy (round-robin for FirstFit) as much of a batch of packets
+     * as it has room for. Packets that do not fit are kept for the next queue.
+     */
+    private void runBatched() {
+        Packet[] batch = new Packet[batchSize];
+        int numPending = 0;
+        while (!done.value) {
+            while (numPending < batchSize)
+                batch[numPending++] = nextPacket();
+            int i = placement == Placement.FirstFit ? nextQueue() : pickQueue();
+            if (sampleMask >= 0) {
+                for (int j = 0; j < numPending; j++)
+                    stamp(batch[j]);
+            }
+            int numEnqueued = queues.get(i).enqBatch(batch, numPending);
+            if (numEnqueued > 0) {
+                wake(i);
+                totalPackets += numEnqueued;
+                queuePackets[i] += numEnqueued;
+                numPending -= numEnqueued;
+                System.arraycopy(batch, numEnqueued, batch, 0, numPending);
+            } else {
+                awaitRoom(i);
+            }
+        }
+    }
+
+    private int pickQueue() {
+        switch (placement) {
+            case RoundRobin:
+                return nextQueue();
+            case LeastLoaded: {
+                int best = 0;
+                int bestSize = size(0);
+                for (int i = 1; i < numWorkers && bestSize > 0; i++) {
+                    int size = size(i);
+                    if (size < bestSize) {
+                        best = i;
+                        bestSize = size;
+                    }
+                }
+                return best;
+            }
+            case PowerOfTwo: {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                int a = rand.nextInt(numWorkers);
+                int b = rand.nextInt(numWorkers);
+                return size(a) <= size(b) ? a : b;
+            }
+            default: {
+                for (int i = 0; i < numWorkers; i++) {
+                    if (size(i) < capacity(i))
+                        return i;
+                }
+                return 0;
+            }
+        }
+    }
+
+    private int nextQueue() {
+        lastQueue = (lastQueue + 1 == numWorkers) ? 0 : lastQueue + 1;
+        return lastQueue;
+    }
+
+    private boolean offer(int i, Packet pkt) {
+        stamp(pkt);
+        if (rings != null) {
+            if (!rings.get(i).offer(pkt))
+                return false;
+        } else {
+            try {
+                queues.get(i).enq(pkt);
+            } catch (FullException e) {
+                return false;
+            }
+        }
+        wake(i);
+        return true;
+    }
+
+    private void wake(int i) {
+        if (idles != null)
+            idles.get(i).wake();
+    }
+
+    private void awaitRoom(int i) {
+        if (idles != null)
+            idles.get(i).awaitRoom();
+    }
+
+    private int size(int i) {
+        return rings != null ? rings.get(i).size() : queues.get(i).size();
+    }
+
+    private int capacity(int i) {
+        return rings != null ? rings.get(i).capacity() : queues.get(i).capacity();
+    }
+
+    private Packet nextPacket() {
+        Packet pkt = pool == null ? source.getPacket() : source.getPacket(pool.acquire());
+        if (lane != null) {
+            while (pkt.type == Packet.MessageType.ConfigPacket) {
+                lane.publish(pkt.config);
+                totalPackets++;
+                lanePackets++;
+                pkt = pool == null ? source.getPacket() : source.getPacket(pkt);
+            }
+            pkt.configSeq = lane.published();
+        }
+        if (sampleMask >= 0)
+            pkt.enqueueNanos = (numGenerated++ & sampleMask) == 0 ? System.nanoTime() : 0;
+        return pkt;
+    }
+
+    /**
+     * Restamps a sampled packet just before an attempt to enqueue it, so its latency starts at the attempt that
+     * succeeds and leaves out the time spent waiting for room.
+     */
+    private void stamp(Packet pkt) {
+        if (pkt.enqueueNanos != 0)
+            pkt.enqueueNanos = System.nanoTime();
+    }
+}
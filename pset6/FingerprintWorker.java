@@ -0,0 +1,83 @@
+package pset6;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Second stage of the staged pipeline: fingerprints the packets classifiers accepted.
+ *
+ * Every classifier (a ParallelWorker piped to this stage) has its own SPSC link to every fingerprint worker, so
+ * each link has a single producer and a single consumer. A slow fingerprint only holds up the packets queued
+ * behind it on this worker's links, never the classifiers' cheap rejects.
+ */
+class FingerprintWorker implements FirewallWorker {
+
+    private final PaddedPrimitiveNonVolatile<Boolean> done;
+    final List<SpscRing<Packet>> links;  // one per classifier
+    final IdleStrategy idle;  // woken by the classifiers
+
+    // Statistics
+    private final ConcurrentHistogram.Shard histogram;
+    long totalPackets = 0;
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * @param done set once every classifier finished, after which the links are drained
+     * @param links one link per classifier
+     * @param shard id of the histogram shard to add fingerprints to
+     */
+    public FingerprintWorker(PaddedPrimitiveNonVolatile<Boolean> done,
+                             List<SpscRing<Packet>> links,
+                             ConcurrentHistogram histogram,
+                             int shard,
+                             IdleStrategy idle) {
+        this.done = done;
+        this.links = links;
+        this.histogram = histogram.shard(shard);
+        this.idle = idle;
+    }
+
+    public void run() {
+        BooleanSupplier hasWork = () -> {
+            for (SpscRing<Packet> link : links) {
+                if (link.size() > 0)
+                    return true;
+            }
+            return false;
+        };
+        while (!done.value) {
+            if (pollLinks())
+                idle.reset();
+            else
+                idle.idle(hasWork);
+        }
+        while (pollLinks())
+            ;
+        idle.finish();
+    }
+
+    /**
+     * Takes at most one packet from each link, so no classifier starves the others.
+     * @return true iff a packet was found
+     */
+    private boolean pollLinks() {
+        boolean found = false;
+        for (SpscRing<Packet> link : links) {
+            Packet pkt = link.poll();
+            if (pkt != null) {
+                processPacket(pkt);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private void processPacket(Packet pkt) {
+        final long enqueueNanos = pkt.enqueueNanos;
+        histogram.add(Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed));
+        totalPackets++;
+        if (enqueueNanos != 0)
+            latency.record(System.nanoTime() - enqueueNanos);
+        pkt.release();
+    }
+}
@@ -1,7 +1,12 @@
 package pset6;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
 import java.util.concurrent.locks.ReentrantLock;
 
 class SerialFirewallTest {
@@ -27,6 +32,7 @@ class SerialFirewallTest {
         final double configFrac = Float.parseFloat(args[8]);
         final double pngFrac = Float.parseFloat(args[9]);
         final double acceptingFrac = Float.parseFloat(args[10]);
+        final String snapshotDir = System.getProperty("snapshot");  // -Dsnapshot=: directory of warm-up snapshots
 
         // Initialize values
         StopWatch timer = new StopWatch();
@@ -37,7 +43,8 @@ class SerialFirewallTest {
 
         // Create the worker and make sure the worker's permission tables are in a steady state
         SerialWorker workerData = new SerialWorker(done, packetGenerator, numAddressesLog);
-        workerData.initConfig();
+        workerData.initConfig(snapshotDir == null ? null :
+                new PermissionSnapshot(snapshotDir, PermissionSnapshot.key(Arrays.copyOfRange(args, 1, 11))));
         Thread workerThread = new Thread(workerData);
 
         // Start the experiment
@@ -90,9 +97,25 @@ class ParallelFirewallTest {
         final double pngFrac = Float.parseFloat(args[9]);
         final double acceptingFrac = Float.parseFloat(args[10]);
         final int numWorkers = Integer.parseInt(args[11]);
-        final int lockType = 2;  // = Integer.parseInt(args[12]);  // TAS, Backoff, ReentrantWrapper, CLH, MCS
-        final int queueStrategy = 1;  // = Integer.parseInt(args[13]);  // LockFree, RandomQueue, LastQueue
-        final int queueDepth = MAX_PKTS_IN_FLIGHT / numWorkers;
+        final int lockType = Integer.getInteger("lockType", 2);  // TAS, Backoff, ReentrantWrapper, CLH, MCS
+        final int queueStrategy = Integer.getInteger("queueStrategy", 1);  // LockFree, RandomQueue, LastQueue, WorkStealing
+        final int rangeListType = Integer.getInteger("rangeList", 0);  // -DrangeList=: 0=SkipRangeList, 1=ArrayRangeList
+        final int verdictCacheLog = Integer.getInteger("verdictCacheLog", 0);  // -DverdictCacheLog=: 0=off
+        final int batchSize = Integer.getInteger("batchSize", 1);  // -DbatchSize=: packets per enqueue/dequeue
+        final boolean useRings = Boolean.getBoolean("ring");  // -Dring=true: SPSC rings, LockFree strategy only
+        final boolean usePool = Boolean.getBoolean("pooled");  // -Dpooled=true: reuse preallocated packets
+        final Dispatcher.Placement placement =  // -Dplacement=: FirstFit, RoundRobin, LeastLoaded, PowerOfTwo, FlowAffinity
+                Dispatcher.Placement.valueOf(System.getProperty("placement", "FirstFit"));
+        final int maxSpill = Integer.getInteger("maxSpill", 1);  // -DmaxSpill=: FlowAffinity spill-over queues
+        final String snapshotDir = System.getProperty("snapshot");  // -Dsnapshot=: directory of warm-up snapshots
+        final int warmupThreads = Integer.getInteger("warmupThreads", 1);  // -DwarmupThreads=: 1=serial warm-up
+        final int progressMillis = Integer.getInteger("progress", 0);  // -Dprogress=: ms between live reports
+        final String tracePath = System.getProperty("trace");  // -Dtrace=: replay a PacketTraceRecorder trace
+        final int numShards = Math.min(numWorkers, Integer.getInteger("shards", 1));  // -Dshards=: dispatchers
+        final int latencySampleLog = Integer.getInteger("latencySampleLog", -1);  // -DlatencySampleLog=: -1=off
+        final boolean useConfigLane = Boolean.getBoolean("configLane");  // -DconfigLane=true: configs skip queues
+        final int numFingerprinters = Integer.getInteger("fingerprinters", 0);  // -Dfingerprinters=: 0=one stage
+        final int queueDepth = Math.max(1, MAX_PKTS_IN_FLIGHT / numWorkers);
 
         // Initialize values
         StopWatch timer = new StopWatch();
@@ -101,6 +124,27 @@ class ParallelFirewallTest {
         PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<Boolean>(false);
         PaddedPrimitive<Boolean> memFence = new PaddedPrimitive<Boolean>(false);
 
+        // The workers always warm up from the generator; the dispatcher may replay a trace recorded after the
+        // same warm-up instead of generating packets itself
+        PacketSource dispatchSource = packetGenerator;
+        if (tracePath != null) {
+            try {
+                PacketTrace trace = new PacketTrace(tracePath);
+                if (!trace.key.equals(PermissionSnapshot.key(Arrays.copyOfRange(args, 1, 11)))) {
+                    System.out.println("ERROR: " + tracePath + " was recorded with different arguments: " + trace.key);
+                    return;
+                }
+                if (numShards > 1) {
+                    System.out.println("ERROR: A trace is replayed by a single dispatcher, not " + numShards + ".");
+                    return;
+                }
+                dispatchSource = trace;
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not open " + tracePath + ": " + e.getMessage());
+                return;
+            }
+        }
+
         // Dispatcher-worker communication initialization
         List<WaitFreeQueue<Packet>> queues = new ArrayList<>();
         List<Lock> locks = new ArrayList<>();
@@ -108,44 +152,138 @@ class ParallelFirewallTest {
             queues.add(new WaitFreeQueue<Packet>(queueDepth));
             locks.add(LockAllocator.getLock(lockType));
         }
+        List<SpscRing<Packet>> rings = null;
+        if (useRings) {
+            if (queueStrategy != 0) {
+                System.out.println("ERROR: SPSC rings require the LockFree queue strategy (0).");
+                return;
+            }
+            rings = new ArrayList<>();
+            for (int i = 0; i < numWorkers; i++)
+                rings.add(new SpscRing<Packet>(queueDepth));
+        }
+        List<IdleStrategy> idles = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++)
+            idles.add(IdleStrategy.fromProperties());
+        List<WorkStealingDeque<Packet>> deques = null;
+        if (queueStrategy == 3) {
+            deques = new ArrayList<>();
+            for (int i = 0; i < numWorkers; i++)
+                deques.add(new WorkStealingDeque<Packet>(MAX_PKTS_IN_FLIGHT));
+        }
 
         // Packet processing objects
         PSource png = new PSource(numAddressesLog);
-        PDestination r = new PDestination(numAddressesLog);
-        Histogram histogram = new Histogram();
+        PDestination r = new PDestination(numAddressesLog, rangeListType);
+        ConcurrentHistogram histogram = new ConcurrentHistogram(numWorkers + numFingerprinters);
+        VerdictCache cache = verdictCacheLog > 0 ? new VerdictCache(verdictCacheLog, numAddressesLog) : null;
+        ConfigLane lane = useConfigLane ? new ConfigLane(MAX_PKTS_IN_FLIGHT, png, r, cache, lockType) : null;
+
+        // Staged pipeline: the workers classify packets and hand the accepted ones to the fingerprint
+        // workers, over one SPSC link per (classifier, fingerprinter) pair
+        PaddedPrimitiveNonVolatile<Boolean> classified = new PaddedPrimitiveNonVolatile<Boolean>(false);
+        List<FingerprintWorker> fingerprinters = new ArrayList<>();
+        List<Thread> fingerprintThreads = new ArrayList<>();
+        List<IdleStrategy> fingerprintIdles = new ArrayList<>();
+        for (int j = 0; j < numFingerprinters; j++) {
+            List<SpscRing<Packet>> links = new ArrayList<>();
+            for (int i = 0; i < numWorkers; i++)
+                links.add(new SpscRing<Packet>(queueDepth));
+            fingerprintIdles.add(IdleStrategy.fromProperties());
+            FingerprintWorker fingerprinter = new FingerprintWorker(classified, links, histogram, numWorkers + j,
+                    fingerprintIdles.get(j));
+            fingerprinters.add(fingerprinter);
+            fingerprintThreads.add(WorkerThreads.newThread(fingerprinter));
+        }
+
+        // Allocate and initialize Dispatcher and Worker threads. With several shards, each dispatcher generates
+        // packets from its own generator shard and feeds its own contiguous subset of the queues.
+        List<Dispatcher> dispatchers = new ArrayList<>();
+        List<Thread> dispatchThreads = new ArrayList<>();
+        for (int shard = 0; shard < numShards; shard++) {
+            final int lo = shard * numWorkers / numShards;
+            final int hi = (shard + 1) * numWorkers / numShards;
+            PacketSource shardSource = numShards == 1 ? dispatchSource : new PacketGenerator(numAddressesLog,
+                    numTrainsLog, meanTrainSize, meanTrainsPerComm, meanWindow, meanCommsPerAddress, meanWork,
+                    configFrac, pngFrac, acceptingFrac, shard, numShards);
+
+            // Enough pooled packets to fill every queue, plus one in each worker and a dispatcher batch. Stolen
+            // packets can end up in any deque, and accepted ones in any fingerprint link.
+            PacketPool pool = null;
+            if (usePool) {
+                int poolSize = (hi - lo) + batchSize + 1;
+                for (int i = lo; i < hi; i++)
+                    poolSize += useRings ? rings.get(i).capacity() : queueDepth;
+                if (deques != null)
+                    poolSize += numWorkers * deques.get(0).capacity();
+                for (FingerprintWorker fingerprinter : fingerprinters) {
+                    for (SpscRing<Packet> link : fingerprinter.links)
+                        poolSize += link.capacity();
+                    poolSize++;
+                }
+                pool = new PacketPool(poolSize, done);
+            }
 
-        // Allocate and initialize Dispatcher and Worker threads
-        Dispatcher dispatchData = new Dispatcher(done, queues, packetGenerator, numWorkers);
-        Thread dispatchThread = new Thread(dispatchData);
+            Dispatcher dispatchData = new Dispatcher(done, queues.subList(lo, hi),
+                    rings == null ? null : rings.subList(lo, hi), shardSource, pool, hi - lo, batchSize, placement,
+                    maxSpill, idles.subList(lo, hi), latencySampleLog,
+                    lane);
+            dispatchers.add(dispatchData);
+            dispatchThreads.add(WorkerThreads.newThread(dispatchData));
+        }
         List<ParallelWorker> workers = new ArrayList<>();
         List<Thread> workerThreads = new ArrayList<>();
         for (int i = 0; i < numWorkers; i++) {
-            ParallelWorker workerData = new ParallelWorker(i, numWorkers, numAddressesLog, packetGenerator, done, queues, locks, png, r, histogram, queueStrategy);
-            Thread workerThread = new Thread(workerData);
+            ParallelWorker workerData = new ParallelWorker(i, numWorkers, numAddressesLog, packetGenerator, done, queues, rings, deques, locks, png, r, histogram, queueStrategy, cache, batchSize, idles.get(i), lane);
+            Thread workerThread = WorkerThreads.newThread(workerData);
             workers.add(workerData);
             workerThreads.add(workerThread);
         }
 
+        if (numFingerprinters > 0) {
+            for (ParallelWorker worker : workers)
+                worker.pipeTo(fingerprinters);
+        }
+
         // Make sure the permission tables are in a steady state
-        workers.get(0).initConfig();
+        workers.get(0).initConfig(snapshotDir == null ? null :
+                new PermissionSnapshot(snapshotDir, PermissionSnapshot.key(Arrays.copyOfRange(args, 1, 11))),
+                warmupThreads);
 
         // Start the experiment
+        for (Thread fingerprintThread : fingerprintThreads)
+            fingerprintThread.start();
         for (Thread workerThread : workerThreads)
             workerThread.start();
         timer.startTimer();
-        dispatchThread.start();
+        for (Thread dispatchThread : dispatchThreads)
+            dispatchThread.start();
 
         try {
-            Thread.sleep(numMilliseconds);
+            // Read the histogram while the workers keep adding to it
+            int elapsed = 0;
+            while (progressMillis > 0 && elapsed + progressMillis < numMilliseconds) {
+                Thread.sleep(progressMillis);
+                elapsed += progressMillis;
+                System.out.println("Progress: " + histogram.snapshot().getTotalPackets() + " packets accepted after " +
+                        elapsed + " ms");
+            }
+            Thread.sleep(numMilliseconds - elapsed);
         } catch (InterruptedException ignore) {;}
 
         // Stop the experiment and enforce a memory barrier
         done.value = true;
         memFence.value = true;
         try {
-            dispatchThread.join();
+            for (Thread dispatchThread : dispatchThreads)
+                dispatchThread.join();
             for (Thread workerThread : workerThreads)
                 workerThread.join();
+            if (lane != null)
+                lane.applyPending();
+            classified.value = true;
+            for (Thread fingerprintThread : fingerprintThreads)
+                fingerprintThread.join();
         } catch (InterruptedException ignore) {
             ;
         }
@@ -154,15 +292,163 @@ class ParallelFirewallTest {
 
         // Print statistics
         final double time = timer.getElapsedTime();
-        final long totalPackets = dispatchData.totalPackets;
+        long totalPackets = 0;
+        long spilledPackets = 0;
+        long lanePackets = 0;
+        long[] queuePackets = new long[numWorkers];
+        for (int shard = 0; shard < numShards; shard++) {
+            Dispatcher dispatchData = dispatchers.get(shard);
+            totalPackets += dispatchData.totalPackets;
+            spilledPackets += dispatchData.spilledPackets;
+            lanePackets += dispatchData.lanePackets;
+            System.arraycopy(dispatchData.queuePackets, 0, queuePackets, shard * numWorkers / numShards,
+                    dispatchData.queuePackets.length);
+        }
+        final Histogram merged = histogram.snapshot();
         System.out.println("-----------------------------------------");
         final long exp = (long)(totalPackets * configFrac + totalPackets * (1 - configFrac) * (1 - pngFrac) * acceptingFrac);
-        final double acc = 100.0 * (1.0 - (float) Math.abs(exp - histogram.getTotalPackets()) / exp);
+        final double acc = 100.0 * (1.0 - (float) Math.abs(exp - merged.getTotalPackets()) / exp);
         final String accStr = String.format("%.2f", acc);
         System.out.println("Expected " + exp + " / " + totalPackets + " packets, " + accStr + "% accuracy");
         System.out.println("PKT_PER_MS " + (double) totalPackets / time + " PKT_PER_MS");
+        System.out.println(IdleStrategy.report(idles, time));
+        System.out.println(WorkerThreads.describe());
+        if (numFingerprinters > 0)
+            System.out.println("Fingerprint stage " + IdleStrategy.report(fingerprintIdles, time));
+        System.out.println("Placement: " + placement + ", " + spilledPackets + " packets spilled over, " + numShards +
+                " dispatcher(s)" + (placement == Dispatcher.Placement.FlowAffinity && batchSize > 1 ?
+                ", dispatcher batching off" : ""));
+        for (int i = 0; i < numWorkers; i++) {
+            ParallelWorker worker = workers.get(i);
+            final double hitRate = 100.0 * worker.trainHits / Math.max(1, worker.trainLookups);
+            System.out.println("Worker " + i + ": " + queuePackets[i] + " dispatched to its queue, " +
+                    worker.totalPackets + " processed, " + String.format("%.2f", hitRate) + "% train cache hits" +
+                    (numFingerprinters > 0 ? ", " + worker.forwardedPackets + " forwarded" : ""));
+        }
+        for (int j = 0; j < numFingerprinters; j++)
+            System.out.println("Fingerprinter " + j + ": " + fingerprinters.get(j).totalPackets + " processed");
+        if (lane != null)
+            System.out.println(lanePackets + " config packets published, " + lane);
+        if (latencySampleLog >= 0) {
+            LatencyHistogram latency = new LatencyHistogram();
+            for (ParallelWorker worker : workers)
+                latency.merge(worker.latency);
+            for (FingerprintWorker fingerprinter : fingerprinters)
+                latency.merge(fingerprinter.latency);
+            System.out.println("Latency (queueStrategy " + queueStrategy + ", " + placement + ", " +
+                    numFingerprinters + " fingerprinters, 1 in " +
+                    (1L << latencySampleLog) + " sampled): " + latency);
+        }
         System.out.println(png);
-	System.out.println(histogram);
+	System.out.println(merged);
+        System.out.println("Total packets processed: " + merged.getTotalPackets());
+        System.out.println("-----------------------------------------");
+    }
+}
+
+class FlowFirewallTest {
+    public static void main(String[] args) {
+        // Validate arguments
+        if (args.length != 12) {
+            System.out.println("ERROR: Expected 12 arguments, got " + args.length + ".");
+            System.out.println("java FlowFirewallTest [numMilliseconds] [numAddressesLog] [numTrainsLog] " +
+                    "[meanTrainSize] [meanTrainsPerComm] [meanWindow] [meanCommsPerAddress] [meanWork] " +
+                    "[configFraction] [pngFraction] [acceptingFraction] [numWorkers]");
+            return;
+        }
+
+        // Parse arguments
+        final int numMilliseconds = Integer.parseInt(args[0]);
+        final int numAddressesLog = Integer.parseInt(args[1]);
+        final int numTrainsLog = Integer.parseInt(args[2]);
+        final double meanTrainSize = Float.parseFloat(args[3]);
+        final double meanTrainsPerComm = Float.parseFloat(args[4]);
+        final int meanWindow = Integer.parseInt(args[5]);
+        final int meanCommsPerAddress = Integer.parseInt(args[6]);
+        final int meanWork = Integer.parseInt(args[7]);
+        final double configFrac = Float.parseFloat(args[8]);
+        final double pngFrac = Float.parseFloat(args[9]);
+        final double acceptingFrac = Float.parseFloat(args[10]);
+        final int numWorkers = Integer.parseInt(args[11]);
+        final String snapshotDir = System.getProperty("snapshot");  // -Dsnapshot=: directory of warm-up snapshots
+        final int window = Integer.getInteger("window", ParallelFirewallTest.MAX_PKTS_IN_FLIGHT);  // -Dwindow=: packets in flight
+        final int verdictBatch = Integer.getInteger("verdictBatch", 64);  // -DverdictBatch=: verdicts per published batch
+
+        // Initialize values
+        StopWatch timer = new StopWatch();
+        PacketGenerator packetGenerator = new PacketGenerator(numAddressesLog, numTrainsLog, meanTrainSize,
+                meanTrainsPerComm, meanWindow, meanCommsPerAddress, meanWork, configFrac, pngFrac, acceptingFrac);
+        PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<Boolean>(false);
+
+        // Make sure the permission tables are in a steady state
+        SerialWorker warmup = new SerialWorker(done, packetGenerator, numAddressesLog);
+        warmup.initConfig(snapshotDir == null ? null :
+                new PermissionSnapshot(snapshotDir, PermissionSnapshot.key(Arrays.copyOfRange(args, 1, 11))));
+
+        // Generator -> firewall -> verdict counter. The generator blocks in submit() once the firewall stops
+        // asking for packets.
+        SubmissionPublisher<Packet> packets = new SubmissionPublisher<Packet>(FlowFirewall.newDeliveryExecutor(),
+                window);
+        FlowFirewall firewall = new FlowFirewall(warmup.png, warmup.r, numWorkers, window, verdictBatch,
+                Flow.defaultBufferSize());
+        final Histogram histogram = new Histogram();
+        final long[] numVerdicts = new long[1];
+        final CountDownLatch finished = new CountDownLatch(1);
+        firewall.subscribe(new Flow.Subscriber<List<FlowFirewall.Verdict>>() {
+            private Flow.Subscription subscription;
+
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            public void onNext(List<FlowFirewall.Verdict> verdicts) {
+                for (FlowFirewall.Verdict verdict : verdicts) {
+                    if (verdict.accepted)
+                        histogram.add(verdict.fingerprint);
+                }
+                numVerdicts[0] += verdicts.size();
+                subscription.request(1);
+            }
+
+            public void onError(Throwable throwable) {
+                System.out.println("ERROR: " + throwable);
+                finished.countDown();
+            }
+
+            public void onComplete() {
+                finished.countDown();
+            }
+        });
+        packets.subscribe(firewall);
+
+        // Start the experiment
+        timer.startTimer();
+        final long deadline = System.nanoTime() + numMilliseconds * 1000000L;
+        long totalPackets = 0;
+        while (System.nanoTime() < deadline) {
+            packets.submit(packetGenerator.getPacket());
+            totalPackets++;
+        }
+
+        // Stop the experiment once every packet submitted has a verdict
+        packets.close();
+        try {
+            finished.await();
+        } catch (InterruptedException ignore) {;}
+        timer.stopTimer();
+
+        // Print statistics
+        final double time = timer.getElapsedTime();
+        System.out.println("-----------------------------------------");
+        final long exp = (long)(totalPackets * configFrac + totalPackets * (1 - configFrac) * (1 - pngFrac) * acceptingFrac);
+        final double acc = 100.0 * (1.0 - (float) Math.abs(exp - histogram.getTotalPackets()) / exp);
+        final String accStr = String.format("%.2f", acc);
+        System.out.println("Expected " + exp + " / " + totalPackets + " packets, " + accStr + "% accuracy");
+        System.out.println("PKT_PER_MS " + (double) totalPackets / time + " PKT_PER_MS");
+        System.out.println(firewall.configPackets + " config packets applied, " + numVerdicts[0] +
+                " verdicts published in batches of " + verdictBatch);
+        System.out.println(histogram);
         System.out.println("Total packets processed: " + histogram.getTotalPackets());
         System.out.println("-----------------------------------------");
     }
@@ -0,0 +1,187 @@
+package pset6;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The firewall as a java.util.concurrent.Flow stage: subscribes to any publisher of packets and publishes batches
+ * of verdicts.
+ *
+ * Backpressure is driven by demand instead of full queues. The firewall requests window packets up front and
+ * one more every time a worker finishes one, so at most window packets are ever in flight and a producer that
+ * outruns the workers simply gets no demand. Verdict batches go out through a SubmissionPublisher, whose
+ * submit() blocks while a subscriber's buffer is full; a slow subscriber therefore stalls the workers, which
+ * stop requesting packets in turn. Nothing busy-waits.
+ *
+ * Config packets are applied on the thread delivering packets, before any later packet is handed to a worker,
+ * just as a worker of the queue-based firewall applies them before dequeuing its next packet.
+ */
+class FlowFirewall implements Flow.Processor<Packet, List<FlowFirewall.Verdict>> {
+
+    /**
+     * Outcome of one data packet.
+     */
+    static final class Verdict {
+        final int source;
+        final int dest;
+        final int sequenceNumber;
+        final boolean accepted;
+        final int fingerprint;  // only if accepted
+
+        Verdict(Header header, boolean accepted, int fingerprint) {
+            this.source = header.source;
+            this.dest = header.dest;
+            this.sequenceNumber = header.sequenceNumber;
+            this.accepted = accepted;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final PSource png;
+    private final PDestination r;
+    private final ExecutorService workers;
+    private final SubmissionPublisher<List<Verdict>> verdicts;
+    private final int window;
+    private final int batchSize;
+    private Flow.Subscription upstream;
+
+    // Verdicts not published yet, guarded by this
+    private List<Verdict> batch;
+
+    // Statistics
+    long configPackets = 0;  // written by the delivering thread only
+
+    /**
+     * @param png permissions tables in steady state, shared with whoever else updates them
+     * @param numWorkers threads checking and fingerprinting data packets
+     * @param window maximum number of packets requested but not processed yet
+     * @param batchSize number of verdicts per published batch
+     * @param bufferSize maximum number of batches buffered per downstream subscriber before workers block
+     */
+    public FlowFirewall(PSource png, PDestination r, int numWorkers, int window, int batchSize, int bufferSize) {
+        this.png = png;
+        this.r = r;
+        this.workers = Executors.newFixedThreadPool(numWorkers);
+        this.verdicts = new SubmissionPublisher<List<Verdict>>(newDeliveryExecutor(), bufferSize);
+        this.window = window;
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * @return a single daemon thread for a SubmissionPublisher to deliver items on, since nothing tells when the
+     *         last subscriber is done with it
+     */
+    static ExecutorService newDeliveryExecutor() {
+        return Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void subscribe(Flow.Subscriber<? super List<Verdict>> subscriber) {
+        verdicts.subscribe(subscriber);
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            subscription.request(window);
+        }
+    }
+
+    public void onNext(Packet pkt) {
+        if (pkt.type == Packet.MessageType.ConfigPacket) {
+            final Config config = pkt.config;
+            png.set(config.address, config.personaNonGrata);
+            r.set(config.address, config.addressBegin, config.addressEnd, config.acceptingRange);
+            configPackets++;
+            pkt.release();
+            requestOne();
+            return;
+        }
+        workers.execute(() -> {
+            // Always hand the packet's demand back, or the window would shrink for good
+            try {
+                add(check(pkt));
+            } catch (RuntimeException e) {
+                fail(e);
+            } finally {
+                pkt.release();
+                requestOne();
+            }
+        });
+    }
+
+    private Verdict check(Packet pkt) {
+        final Header header = pkt.header;
+        if (!png.isValid(header.source) || !r.isValid(header.source, header.dest))
+            return new Verdict(header, false, 0);
+        return new Verdict(header, true, Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed));
+    }
+
+    /**
+     * Calls to a subscription must not overlap, so workers take turns asking for their next packet.
+     */
+    private synchronized void requestOne() {
+        upstream.request(1);
+    }
+
+    /**
+     * Stops asking for packets and passes a worker's failure on to the subscribers.
+     */
+    private void fail(Throwable throwable) {
+        synchronized (this) {
+            upstream.cancel();
+        }
+        onError(throwable);
+    }
+
+    private void add(Verdict verdict) {
+        List<Verdict> full = null;
+        synchronized (this) {
+            batch.add(verdict);
+            if (batch.size() == batchSize) {
+                full = batch;
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (full != null)
+            verdicts.submit(full);
+    }
+
+    public void onError(Throwable throwable) {
+        workers.shutdownNow();
+        verdicts.closeExceptionally(throwable);
+    }
+
+    /**
+     * Waits for the packets in flight, then publishes the last partial batch and completes the subscribers.
+     */
+    public void onComplete() {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS))
+                ;
+        } catch (InterruptedException e) {
+            verdicts.closeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            if (!batch.isEmpty())
+                verdicts.submit(batch);
+            batch = new ArrayList<>(0);
+        }
+        verdicts.close();
+    }
+}
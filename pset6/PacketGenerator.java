@@ -1,10 +1,34 @@
 package pset6;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 import java.lang.Object;
 import java.lang.Math;
 
+// generator-only packet rate of each random backend
+class PacketGeneratorBenchmark {
+  public static void main(String[] args) {
+    final int numPackets = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+    for( RandomGenerator.Backend backend : RandomGenerator.Backend.values() ) {
+      PacketGenerator gen = new PacketGenerator(11,12,5,1,3,3,3822,0.24d,0.04d,0.96d,
+        0,1,backend);
+      Packet pkt = new Packet();
+      long sum = 0;
+      for( int i = 0; i < numPackets / 10; i++ ) // warm up the JIT
+        sum += gen.getPacket(pkt).type == Packet.MessageType.ConfigPacket ? 1 : 0;
+      StopWatch timer = new StopWatch();
+      timer.startTimer();
+      for( int i = 0; i < numPackets; i++ )
+        sum += gen.getPacket(pkt).type == Packet.MessageType.ConfigPacket ? 1 : 0;
+      timer.stopTimer();
+      System.out.println(backend + ": " + numPackets / timer.getElapsedTime() +
+        " packets/ms (" + sum + " config packets)");
+    }
+  }
+}
 class PacketGeneratorApp {
   public static void main(String[] args) { 
     PacketGenerator gen = new PacketGenerator(5,4,5,4,5,3,3000,0.1d,0.2d,0.8d);
@@ -15,11 +39,18 @@ class PacketGeneratorApp {
   }
 }
 
-class PacketGenerator {
+// where the dispatcher gets its packets: generated on the fly or replayed
+interface PacketSource {
+  public Packet getPacket();
+  // fills dst in place instead of allocating; dst must come from new Packet()
+  public Packet getPacket(Packet dst);
+}
+class PacketGenerator implements PacketSource {
   final AddressPairGenerator pairGen;
   final ExponentialGenerator expGen;
-  final UniformGenerator uniGen = new UniformGenerator();
-  final int mask; // numTrains - 1
+  final UniformGenerator uniGen;
+  final int mask; // numTrains - 1 if numTrains is a power of two, else -1
+  final int numTrains;
   final int addressesMask;
   final double meanTrainSize;
   final double meanTrainsPerComm;
@@ -42,10 +73,63 @@ class PacketGenerator {
     double configFraction,
     double pngFraction,
     double acceptingFraction ) {
-    this.expGen = new ExponentialGenerator((1.0d/configFraction)-1);
+    this(numAddressesLog, numTrainsLog, meanTrainSize, meanTrainsPerComm,
+      meanWindow, meanCommsPerAddress, meanWork, configFraction, pngFraction,
+      acceptingFraction, 0, 1);
+  }
+  // one of numShards generators that each feed their own dispatcher. A shard
+  // has its share of the trains, its own random streams and starts walking
+  // the address space at its share of it, so the shards together produce the
+  // same mix of packets as one generator. Shard 0 of 1 is the plain generator.
+  public PacketGenerator(
+    int numAddressesLog,
+    int numTrainsLog,
+    double meanTrainSize,
+    double meanTrainsPerComm,
+    int meanWindow,
+    int meanCommsPerAddress,
+    int meanWork,
+    double configFraction,
+    double pngFraction,
+    double acceptingFraction,
+    int shard,
+    int numShards ) {
+    this(numAddressesLog, numTrainsLog, meanTrainSize, meanTrainsPerComm,
+      meanWindow, meanCommsPerAddress, meanWork, configFraction, pngFraction,
+      acceptingFraction, shard, numShards, RandomGenerator.DEFAULT_BACKEND);
+  }
+  public PacketGenerator(
+    int numAddressesLog,
+    int numTrainsLog,
+    double meanTrainSize,
+    double meanTrainsPerComm,
+    int meanWindow,
+    int meanCommsPerAddress,
+    int meanWork,
+    double configFraction,
+    double pngFraction,
+    double acceptingFraction,
+    int shard,
+    int numShards,
+    RandomGenerator.Backend backend ) {
+    this.uniGen = new UniformGenerator(backend);
+    this.expGen = new ExponentialGenerator((1.0d/configFraction)-1, backend);
     this.pairGen = new AddressPairGenerator(meanCommsPerAddress, 
-      numAddressesLog, (double) meanWindow);
-    this.mask = (1 << numTrainsLog) - 1;
+      numAddressesLog, (double) meanWindow, backend);
+    if( shard > 0 ) {
+      uniGen.setSeed(shardSeed(uniGen.randGen.seed, shard));
+      expGen.randGen.setSeed(shardSeed(expGen.randGen.seed, shard));
+      pairGen.uniGen.setSeed(shardSeed(pairGen.uniGen.randGen.seed, shard));
+      pairGen.expGen.randGen.setSeed(shardSeed(pairGen.expGen.randGen.seed, shard));
+      pairGen.source = (int) (((long) shard << numAddressesLog) / numShards);
+      pairGen.dest = pairGen.source;
+    }
+    // the 2^numTrainsLog trains split exactly, the low shards taking one more
+    // if they do not split evenly
+    final int totalTrains = 1 << numTrainsLog;
+    this.numTrains = Math.max(1, totalTrains / numShards +
+      (shard < totalTrains % numShards ? 1 : 0));
+    this.mask = Integer.bitCount(numTrains) == 1 ? numTrains - 1 : -1;
     this.addressesMask = (1 << numAddressesLog) - 1;
     this.meanTrainSize = meanTrainSize;
     this.meanTrainsPerComm = meanTrainsPerComm;
@@ -54,13 +138,16 @@ class PacketGenerator {
     this.configAddressMask = (1 << (numAddressesLog >> 1)) - 1;
     this.pngFraction = pngFraction;
     this.acceptingFraction = acceptingFraction;
-    this.trains = new PacketStruct[mask+1];
-    for( int i = 0; i <= mask; i++ ) {
-      this.trains[i] = new PacketStruct(pairGen.getPair(), 
-        expGen.getRand(meanTrainSize),expGen.getRand(meanTrainsPerComm), 
-        expGen.getRand(this.meanWork), uniGen.getRand());
+    this.trains = new PacketStruct[numTrains];
+    for( int i = 0; i < numTrains; i++ ) {
+      this.trains[i] = new PacketStruct();
+      nextTrain(this.trains[i]);
     }
   }
+  // a positive seed for the shard's copy of a random stream
+  private int shardSeed(int seed, int shard) {
+    return (uniGen.mangle(seed ^ (shard * 0x61c88647)) & 0x3fffffff) | 1;
+  }
   public Packet getPacket() {
     if( timeToNextConfigPacket == 0 ) {
       numConfigPackets++;
@@ -70,50 +157,132 @@ class PacketGenerator {
     else
       return getDataPacket();
   }
+  // fills dst in place instead of allocating; dst must come from new Packet()
+  public Packet getPacket(Packet dst) {
+    if( timeToNextConfigPacket == 0 ) {
+      numConfigPackets++;
+      timeToNextConfigPacket = expGen.getRand();
+      return getConfigPacket(dst);
+    }
+    else
+      return getDataPacket(dst);
+  }
   public Packet getConfigPacket() {
-    lastConfigAddress = pairGen.getPair().source;
-    int addressBegin = uniGen.getRand(addressesMask-configAddressMask);
-    return new Packet(new Config(lastConfigAddress, uniGen.getUnitRand() < pngFraction, 
-      uniGen.getUnitRand() < acceptingFraction, addressBegin, 
-      uniGen.getRand(addressBegin+1,addressBegin+configAddressMask)));  
+    Config config = new Config();
+    nextConfig(config);
+    return new Packet(config);
+  }
+  public Packet getConfigPacket(Packet dst) {
+    nextConfig(dst.config);
+    dst.type = Packet.MessageType.ConfigPacket;
+    return dst;
   }
   public Packet getDataPacket() {
+    Header header = new Header();
+    Body body = new Body();
+    nextData(header, body);
+    return new Packet(header, body);
+  }
+  public Packet getDataPacket(Packet dst) {
+    nextData(dst.header, dst.body);
+    dst.type = Packet.MessageType.DataPacket;
+    return dst;
+  }
+  private void nextConfig(Config config) {
+    pairGen.nextPair();
+    lastConfigAddress = pairGen.pairSource;
+    int addressBegin = uniGen.getRand(addressesMask-configAddressMask);
+    boolean personaNonGrata = uniGen.getUnitRand() < pngFraction;
+    boolean acceptingRange = uniGen.getUnitRand() < acceptingFraction;
+    config.set(lastConfigAddress, personaNonGrata, acceptingRange, addressBegin, 
+      uniGen.getRand(addressBegin+1,addressBegin+configAddressMask));
+  }
+  private void nextData(Header header, Body body) {
     if( timeToNextConfigPacket > 0 ) 
       timeToNextConfigPacket--;
-    int trainIndex = uniGen.getRand() & mask;
+    int trainIndex = mask >= 0 ? uniGen.getRand() & mask
+      : Math.floorMod(uniGen.getRand(), numTrains);
     PacketStruct pkt = trains[trainIndex];
-    Packet packet = new Packet(
-      new Header(pkt.pair.source, pkt.pair.dest, pkt.sequenceNumber, pkt.trainSize, pkt.tag),
-      new Body(expGen.getRand(pkt.meanWork), uniGen.getRand()));
+    header.set(pkt.source, pkt.dest, pkt.sequenceNumber, pkt.trainSize, pkt.tag);
+    body.set(expGen.getRand(pkt.meanWork), uniGen.getRand());
     pkt.sequenceNumber++;
     if( pkt.sequenceNumber == pkt.trainSize ) {// this was the last packet
       pkt.sequenceNumber = 0;
       pkt.trainNumber++;
     }
     if( pkt.trainNumber == pkt.totalTrains ) {// this was the last train
-      trains[trainIndex] = new PacketStruct(pairGen.getPair(), 
-        expGen.getRand(meanTrainSize), expGen.getRand(meanTrainsPerComm), 
-        expGen.getRand(meanWork), uniGen.getRand());
+      nextTrain(pkt);
     }
-    return packet;
+  }
+  // writes everything getPacket() depends on, so a generator loaded with
+  // loadState() continues the exact same packet stream
+  void saveState(DataOutputStream out) throws IOException {
+    out.writeInt(timeToNextConfigPacket);
+    out.writeInt(lastConfigAddress);
+    out.writeInt(numConfigPackets);
+    out.writeInt(uniGen.randGen.seed);
+    out.writeInt(expGen.randGen.seed);
+    pairGen.saveState(out);
+    out.writeInt(trains.length);
+    for( PacketStruct train : trains ) {
+      out.writeInt(train.source);
+      out.writeInt(train.dest);
+      out.writeInt(train.trainSize);
+      out.writeInt(train.totalTrains);
+      out.writeDouble(train.meanWork);
+      out.writeInt(train.tag);
+      out.writeInt(train.sequenceNumber);
+      out.writeInt(train.trainNumber);
+    }
+  }
+  void loadState(ByteBuffer in) throws IOException {
+    timeToNextConfigPacket = in.getInt();
+    lastConfigAddress = in.getInt();
+    numConfigPackets = in.getInt();
+    uniGen.setSeed(in.getInt());
+    expGen.randGen.setSeed(in.getInt());
+    pairGen.loadState(in);
+    if( in.getInt() != trains.length )
+      throw new IOException("Snapshot has a different number of trains");
+    for( PacketStruct train : trains ) {
+      train.reset(in.getInt(), in.getInt(), in.getInt(), in.getInt(),
+        in.getDouble(), 0);
+      train.tag = in.getInt();
+      train.sequenceNumber = in.getInt();
+      train.trainNumber = in.getInt();
+    }
+  }
+  private void nextTrain(PacketStruct train) {
+    pairGen.nextPair();
+    int source = pairGen.pairSource;
+    int dest = pairGen.pairDest;
+    int trainSize = expGen.getRand(meanTrainSize);
+    int totalTrains = expGen.getRand(meanTrainsPerComm);
+    double trainWork = expGen.getRand(meanWork);
+    train.reset(source, dest, trainSize, totalTrains, trainWork, uniGen.getRand());
   }
 }
 
+// state of one packet train, reused for the next train once the last one finishes
 class PacketStruct {
-  final AddressPair pair;
-  final int trainSize;
-  final int totalTrains;
-  final double meanWork;
-  final int tag;
+  int source;
+  int dest;
+  int trainSize;
+  int totalTrains;
+  double meanWork;
+  int tag;
   int sequenceNumber = 0;
   int trainNumber = 0;
-  public PacketStruct(AddressPair pair, int trainSize, int totalTrains,
+  void reset(int source, int dest, int trainSize, int totalTrains,
     double meanWork, int tag) {
-    this.pair = pair;
+    this.source = source;
+    this.dest = dest;
     this.trainSize = trainSize;
     this.totalTrains = totalTrains;
     this.meanWork = meanWork;
     this.tag = tag;
+    this.sequenceNumber = 0;
+    this.trainNumber = 0;
   }
 }
 
@@ -141,7 +310,13 @@ class AddressPairGenerator {
   double destResidue;
   ExponentialGenerator expGen;
   UniformGenerator uniGen;
+  int pairSource; // last pair produced by nextPair()
+  int pairDest;
   public AddressPairGenerator(int meanCommsPerAddress, int logSize, double mean) {
+    this(meanCommsPerAddress, logSize, mean, RandomGenerator.DEFAULT_BACKEND);
+  }
+  public AddressPairGenerator(int meanCommsPerAddress, int logSize, double mean,
+    RandomGenerator.Backend backend) {
     this.speed = 2.0d / ((double) meanCommsPerAddress);
     this.mask = (1 << logSize) - 1;
     this.logSize = logSize;
@@ -149,10 +324,35 @@ class AddressPairGenerator {
     this.dest = 0;
     this.sourceResidue = 0.0d;
     this.destResidue = 0.0d;
-    this.expGen = new ExponentialGenerator(mean);
-    this.uniGen = new UniformGenerator();
+    this.expGen = new ExponentialGenerator(mean, backend);
+    this.uniGen = new UniformGenerator(backend);
+  }
+  void saveState(DataOutputStream out) throws IOException {
+    out.writeInt(source);
+    out.writeInt(dest);
+    out.writeDouble(sourceResidue);
+    out.writeDouble(destResidue);
+    out.writeInt(expGen.randGen.seed);
+    out.writeInt(uniGen.randGen.seed);
+    out.writeInt(pairSource);
+    out.writeInt(pairDest);
+  }
+  void loadState(ByteBuffer in) {
+    source = in.getInt();
+    dest = in.getInt();
+    sourceResidue = in.getDouble();
+    destResidue = in.getDouble();
+    expGen.randGen.setSeed(in.getInt());
+    uniGen.setSeed(in.getInt());
+    pairSource = in.getInt();
+    pairDest = in.getInt();
   }
   public AddressPair getPair() {
+    nextPair();
+    return new AddressPair(pairSource, pairDest);
+  }
+  // like getPair(), but leaves the pair in pairSource and pairDest instead of allocating
+  void nextPair() {
     sourceResidue = sourceResidue + speed*uniGen.getUnitRand();
     destResidue = destResidue + speed*uniGen.getUnitRand();
     while( sourceResidue > 0.0d ) {
@@ -163,8 +363,8 @@ class AddressPairGenerator {
       dest = ( dest + mask ) & mask; // he's walking backward...
       destResidue = destResidue - 1.0d;
     }
-    return new AddressPair(uniGen.mangle(1+((source+expGen.getRand())))& mask,
-                          uniGen.mangle(1+((dest+expGen.getRand())))& mask);
+    pairSource = uniGen.mangle(1+((source+expGen.getRand())))& mask;
+    pairDest = uniGen.mangle(1+((dest+expGen.getRand())))& mask;
   }
 }
 
@@ -182,7 +382,17 @@ class Packet {
   final Config config;
   final Header header;
   final Body body;
-  final MessageType type;
+  MessageType type;
+  volatile boolean inUse = false; // pooled packets only: set while the packet is in flight
+  long configSeq = 0; // data packets behind a ConfigLane: configs published before the packet
+  long enqueueNanos = 0; // System.nanoTime() when a dispatcher sampling latencies enqueued the packet, 0 if unsampled
+  // pooled packet: owns a config, header and body that are overwritten every time it is reused
+  public Packet() {
+    this.config = new Config();
+    this.header = new Header();
+    this.body = new Body();
+    this.type = MessageType.DataPacket;
+  }
   public Packet(Config config) {
     this.config = config;
     this.header = null;
@@ -195,6 +405,10 @@ class Packet {
     this.body = body;
     this.type = MessageType.DataPacket;
   }
+  // hands a pooled packet back to its PacketPool once it has been processed
+  public void release() {
+    inUse = false;
+  }
   public void printPacket() {
     if( type == MessageType.ConfigPacket ) {
       System.out.println("CONFIG: " + config.address + " <" + config.personaNonGrata + 
@@ -210,12 +424,17 @@ class Packet {
 }
 
 class Config {
-  final int address;
-  final boolean personaNonGrata;
-  final boolean acceptingRange;
-  final int addressBegin;
-  final int addressEnd;
+  int address;
+  boolean personaNonGrata;
+  boolean acceptingRange;
+  int addressBegin;
+  int addressEnd;
+  public Config() {}
   public Config(int address, boolean personaNonGrata, boolean acceptingRange,
+    int addressBegin, int addressEnd) {
+    set(address, personaNonGrata, acceptingRange, addressBegin, addressEnd);
+  }
+  void set(int address, boolean personaNonGrata, boolean acceptingRange,
     int addressBegin, int addressEnd) {
     this.address = address;
     this.personaNonGrata = personaNonGrata;
@@ -226,12 +445,16 @@ class Config {
 }
 
 class Header {
-  final int source;
-  final int dest;
-  final int sequenceNumber;
-  final int trainSize;
-  final int tag;
+  int source;
+  int dest;
+  int sequenceNumber;
+  int trainSize;
+  int tag;
+  public Header() {}
   public Header(int source, int dest, int seq, int trainSize, int tag) {
+    set(source, dest, seq, trainSize, tag);
+  }
+  void set(int source, int dest, int seq, int trainSize, int tag) {
     this.source = source;
     this.dest = dest;
     this.sequenceNumber = seq;
@@ -241,13 +464,16 @@ class Header {
 }
 
 class Body {
-  final long iterations;
-  final long seed;
+  long iterations;
+  long seed;
   public Body() {
     iterations = 0;
     seed = 0;
   }
   public Body(long iterations, long seed) {
+    set(iterations, seed);
+  }
+  void set(long iterations, long seed) {
     this.iterations = iterations;
     this.seed = seed;
   }
@@ -0,0 +1,49 @@
+package pset6;
+
+/**
+ * A ring of preallocated packets that the dispatcher fills in place with PacketGenerator.getPacket(Packet),
+ * so generating and handing off a packet allocates nothing. Workers hand a packet back by calling
+ * Packet.release() once it has been processed.
+ */
+class PacketPool {
+
+    private final Packet[] packets;
+    private final PaddedPrimitiveNonVolatile<Boolean> done;
+    private int next = 0;
+
+    /**
+     * @param size number of packets, which must exceed the number of packets that can be in flight at once
+     * @param done set when the run ends, after which acquire() stops waiting for released packets
+     */
+    public PacketPool(int size, PaddedPrimitiveNonVolatile<Boolean> done) {
+        this.done = done;
+        packets = new Packet[size];
+        for (int i = 0; i < size; i++) {
+            packets[i] = new Packet();
+        }
+    }
+
+    /**
+     * Dispatcher only. Returns the next packet in the ring that has been released, marking it in use. If every
+     * packet is still in flight once the run is done, returns a packet outside the pool instead, so a dispatcher
+     * waiting on workers that have stopped still gets back to its own done check.
+     * @return a packet that is free to be overwritten
+     */
+    public Packet acquire() {
+        int scanned = 0;
+        while (true) {
+            Packet pkt = packets[next];
+            next = (next + 1 == packets.length) ? 0 : next + 1;
+            if (!pkt.inUse) {
+                pkt.inUse = true;
+                return pkt;
+            }
+            if (++scanned == packets.length) {
+                if (done.value)
+                    return new Packet();
+                scanned = 0;
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package pset6;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Replays a packet stream recorded by PacketTraceRecorder, so a benchmark measures the firewall without the
+ * cost of generating packets and every run sees the exact same input.
+ *
+ * A trace starts with a magic number, a version, the generator parameters it was recorded with and the number
+ * of packets, padded to a multiple of 8 bytes. Each packet is then a fixed-width record of RECORD_SIZE bytes:
+ *   int type (CONFIG or DATA)
+ *   config: int address, int flags (1 = personaNonGrata, 2 = acceptingRange), int addressBegin, int addressEnd
+ *   data:   int source, int dest, int sequenceNumber, int trainSize, int tag
+ *   long iterations, long seed (data only)
+ * The file is mapped read-only and the replay wraps around to the first packet after the last one.
+ */
+class PacketTrace implements PacketSource {
+
+    static final int MAGIC = 0x50545243;  // "PTRC"
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 40;
+    static final int CONFIG = 0;
+    static final int DATA = 1;
+
+    final String key;
+    final int numPackets;
+    private final MappedByteBuffer records;
+    private final int start;
+    private int next = 0;
+
+    /**
+     * @param path trace written by record()
+     */
+    public PacketTrace(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (records.getInt() != MAGIC || records.getInt() != VERSION)
+            throw new IOException(path + " is not a packet trace");
+        byte[] fileKey = new byte[records.getInt()];
+        records.get(fileKey);
+        key = new String(fileKey, "UTF-8");
+        numPackets = records.getInt();
+        start = (records.position() + 7) & ~7;
+        if (numPackets <= 0 || start + (long) numPackets * RECORD_SIZE > records.capacity())
+            throw new IOException(path + " is truncated");
+    }
+
+    public Packet getPacket() {
+        return getPacket(new Packet());
+    }
+
+    public Packet getPacket(Packet dst) {
+        final int at = start + next * RECORD_SIZE;
+        next = (next + 1 == numPackets) ? 0 : next + 1;
+        if (records.getInt(at) == CONFIG) {
+            final int flags = records.getInt(at + 8);
+            dst.config.set(records.getInt(at + 4), (flags & 1) != 0, (flags & 2) != 0,
+                    records.getInt(at + 12), records.getInt(at + 16));
+            dst.type = Packet.MessageType.ConfigPacket;
+        } else {
+            dst.header.set(records.getInt(at + 4), records.getInt(at + 8), records.getInt(at + 12),
+                    records.getInt(at + 16), records.getInt(at + 20));
+            dst.body.set(records.getLong(at + 24), records.getLong(at + 32));
+            dst.type = Packet.MessageType.DataPacket;
+        }
+        return dst;
+    }
+
+    /**
+     * Writes the next numPackets packets of the source to a trace.
+     * @param key generator parameters the source was made with, checked by the driver replaying the trace
+     */
+    public static void record(PacketSource source, int numPackets, String key, String path) throws IOException {
+        if ((long) numPackets * RECORD_SIZE > Integer.MAX_VALUE - 4096)
+            throw new IOException("A trace can hold at most " + (Integer.MAX_VALUE - 4096) / RECORD_SIZE + " packets");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            byte[] fileKey = key.getBytes("UTF-8");
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fileKey.length);
+            out.write(fileKey);
+            out.writeInt(numPackets);
+            for (int i = out.size(); (i & 7) != 0; i++)
+                out.writeByte(0);
+
+            Packet pkt = new Packet();
+            for (int i = 0; i < numPackets; i++) {
+                source.getPacket(pkt);
+                if (pkt.type == Packet.MessageType.ConfigPacket) {
+                    Config config = pkt.config;
+                    out.writeInt(CONFIG);
+                    out.writeInt(config.address);
+                    out.writeInt((config.personaNonGrata ? 1 : 0) | (config.acceptingRange ? 2 : 0));
+                    out.writeInt(config.addressBegin);
+                    out.writeInt(config.addressEnd);
+                    out.writeInt(0);
+                    out.writeLong(0);
+                    out.writeLong(0);
+                } else {
+                    Header header = pkt.header;
+                    out.writeInt(DATA);
+                    out.writeInt(header.source);
+                    out.writeInt(header.dest);
+                    out.writeInt(header.sequenceNumber);
+                    out.writeInt(header.trainSize);
+                    out.writeInt(header.tag);
+                    out.writeLong(pkt.body.iterations);
+                    out.writeLong(pkt.body.seed);
+                }
+            }
+        }
+    }
+}
+
+class PacketTraceRecorder {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 12) {
+            System.out.println("ERROR: Expected 12 arguments, got " + args.length + ".");
+            System.out.println("java PacketTraceRecorder [numAddressesLog] [numTrainsLog] " +
+                    "[meanTrainSize] [meanTrainsPerComm] [meanWindow] [meanCommsPerAddress] [meanWork] " +
+                    "[configFraction] [pngFraction] [acceptingFraction] [numPackets] [traceFile]");
+            return;
+        }
+
+        // Parse arguments
+        final int numAddressesLog = Integer.parseInt(args[0]);
+        final int numTrainsLog = Integer.parseInt(args[1]);
+        final double meanTrainSize = Float.parseFloat(args[2]);
+        final double meanTrainsPerComm = Float.parseFloat(args[3]);
+        final int meanWindow = Integer.parseInt(args[4]);
+        final int meanCommsPerAddress = Integer.parseInt(args[5]);
+        final int meanWork = Integer.parseInt(args[6]);
+        final double configFrac = Float.parseFloat(args[7]);
+        final double pngFrac = Float.parseFloat(args[8]);
+        final double acceptingFrac = Float.parseFloat(args[9]);
+        final int numPackets = Integer.parseInt(args[10]);
+
+        // Skip the config packets the workers consume warming up, so the trace picks up where the
+        // dispatcher's generator would
+        PacketGenerator packetGenerator = new PacketGenerator(numAddressesLog, numTrainsLog, meanTrainSize,
+                meanTrainsPerComm, meanWindow, meanCommsPerAddress, meanWork, configFrac, pngFrac, acceptingFrac);
+        final int initSize = (int)Math.pow(1 << numAddressesLog, 1.5);
+        for (int i = 0; i < initSize; i++) {
+            packetGenerator.getConfigPacket();
+        }
+
+        PacketTrace.record(packetGenerator, numPackets, PermissionSnapshot.key(Arrays.copyOfRange(args, 0, 10)), args[11]);
+        System.out.println("Recorded " + numPackets + " packets to " + args[11]);
+    }
+}
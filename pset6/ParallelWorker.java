@@ -1,10 +1,12 @@
 package pset6;
 
-import java.util.concurrent.locks.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.function.BooleanSupplier;
 
 class ParallelWorker implements FirewallWorker {
 
@@ -14,25 +16,35 @@ class ParallelWorker implements FirewallWorker {
     private final int numAddressesLog;
     private final PacketGenerator source;
     private final int queueStrategy;
+    private final int batchSize;
 
     // Obtain packet tasks
     private final PaddedPrimitiveNonVolatile<Boolean> done;
     private final List<WaitFreeQueue<Packet>> queues;
+    private final List<SpscRing<Packet>> rings;
+    private final List<WorkStealingDeque<Packet>> deques;
     private final List<Lock> locks;
 
     // Statistics
     private final Fingerprint fingerprint;
     private final PSource png;
     private final PDestination r;
-    private Histogram histogram;
-    private Histogram cached;
+    private final VerdictCache cache;
+    private final IdleStrategy idle;
+    private final ConfigLane lane;
+    private final ConcurrentHistogram.Shard histogram;
     long totalPackets = 0;
+    final LatencyHistogram latency = new LatencyHistogram();  // of the packets the dispatcher stamped
+    long trainLookups = 0;  // data packets whose permissions were looked up
+    long trainHits = 0;  // ...and answered by the train cache
+    long forwardedPackets = 0;  // accepted and handed to the fingerprint stage
 
     // Train cache
     private int tag = -1;
 
-    // Global lock??
-    private static ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+    // Fingerprint stage, set by pipeTo() before the worker starts
+    private List<FingerprintWorker> stage = null;
+    private int nextLink = 0;
 
     public ParallelWorker(int threadID,
                           int numWorkers,
@@ -43,21 +55,55 @@ class ParallelWorker implements FirewallWorker {
                           List<Lock> locks,
                           PSource png,
                           PDestination r,
-                          Histogram histogram,
+                          ConcurrentHistogram histogram,
                           int queueStrategy) {
+        this(threadID, numWorkers, numAddressesLog, source, done, queues, null, null, locks, png, r, histogram,
+                queueStrategy, null, 1, new IdleStrategy(IdleStrategy.Mode.Spin, 0, 0, 0, 0), null);
+    }
+
+    /**
+     * @param rings SPSC rings the LockFree strategy reads instead of queues, or null to use queues
+     * @param deques one work-stealing deque per worker for the WorkStealing strategy, or null
+     * @param cache verdict cache shared by all workers, or null to only remember the last train seen
+     * @param batchSize number of packets dequeued at once by the LockFree strategy; 1 dequeues one at a time
+     * @param idle what the worker does after finding no packet; the dispatcher wakes it when filling its queue
+     * @param lane lane the dispatchers publish config packets to, or null if they queue them
+     */
+    public ParallelWorker(int threadID,
+                          int numWorkers,
+                          int numAddressesLog,
+                          PacketGenerator source,
+                          PaddedPrimitiveNonVolatile<Boolean> done,
+                          List<WaitFreeQueue<Packet>> queues,
+                          List<SpscRing<Packet>> rings,
+                          List<WorkStealingDeque<Packet>> deques,
+                          List<Lock> locks,
+                          PSource png,
+                          PDestination r,
+                          ConcurrentHistogram histogram,
+                          int queueStrategy,
+                          VerdictCache cache,
+                          int batchSize,
+                          IdleStrategy idle,
+                          ConfigLane lane) {
         this.threadID = threadID;
         this.numWorkers = numWorkers;
         this.numAddressesLog = numAddressesLog;
         this.source = source;
         this.done = done;
         this.queues = queues;
+        this.rings = rings;
+        this.deques = deques;
         this.locks = locks;
         this.fingerprint = new Fingerprint();
         this.png = png;
         this.r = r;
-        this.histogram = new Histogram();
-        this.cached = histogram;
+        this.cache = cache;
+        this.histogram = histogram.shard(threadID);
         this.queueStrategy = queueStrategy;
+        this.batchSize = batchSize;
+        this.idle = idle;
+        this.lane = lane;
     }
 
     /**
@@ -77,25 +123,179 @@ class ParallelWorker implements FirewallWorker {
         System.out.println("DONE");
     }
 
+    /**
+     * Like initConfig(), but applies the config packets on numPartitions threads while this thread generates
+     * them. The png update of an address and the range update of a PDestination key always go to the same
+     * partition, in stream order, so the tables end up exactly as initConfig() leaves them.
+     * @param numPartitions number of threads applying config packets; 1 runs initConfig()
+     */
+    public void initConfig(int numPartitions) {
+        if (numPartitions <= 1) {
+            initConfig();
+            return;
+        }
+        System.out.printf("Initializing permissions table on " + numPartitions + " threads");
+        final PaddedPrimitive<Boolean> generated = new PaddedPrimitive<Boolean>(false);
+        List<SpscRing<Config>> pngRings = new ArrayList<>();
+        List<SpscRing<Config>> rangeRings = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numPartitions; i++) {
+            final SpscRing<Config> pngRing = new SpscRing<Config>(ParallelFirewallTest.MAX_PKTS_IN_FLIGHT);
+            final SpscRing<Config> rangeRing = new SpscRing<Config>(ParallelFirewallTest.MAX_PKTS_IN_FLIGHT);
+            pngRings.add(pngRing);
+            rangeRings.add(rangeRing);
+            threads.add(new Thread(() -> applyConfigs(pngRing, rangeRing, generated)));
+        }
+        for (Thread thread : threads)
+            thread.start();
+
+        final int numAddresses = 1 << numAddressesLog;
+        final int initSize = (int)Math.pow(numAddresses, 1.5);
+        final int initSizeFrac = initSize / 20;
+        for (int i = 0; i < initSize; i++) {
+            if (i % initSizeFrac == initSizeFrac - 1)
+                System.out.printf(".");
+            Config config = source.getConfigPacket().config;
+            SpscRing<Config> pngRing = pngRings.get(config.address % numPartitions);
+            SpscRing<Config> rangeRing = rangeRings.get(config.addressEnd % numPartitions);
+            while (!pngRing.offer(config))
+                Thread.yield();
+            while (!rangeRing.offer(config))
+                Thread.yield();
+        }
+        generated.value = true;
+        try {
+            for (Thread thread : threads)
+                thread.join();
+        } catch (InterruptedException ignore) {;}
+        System.out.println("DONE");
+    }
+
+    /**
+     * Warm-up partition: applies the png half of the configs in pngRing and the range half of the configs in
+     * rangeRing until every config has been generated and both rings are empty.
+     */
+    private void applyConfigs(SpscRing<Config> pngRing, SpscRing<Config> rangeRing,
+                              PaddedPrimitive<Boolean> generated) {
+        while (true) {
+            final boolean finished = generated.value;
+            boolean idle = true;
+            Config config;
+            while ((config = pngRing.poll()) != null) {
+                png.set(config.address, config.personaNonGrata);
+                if (cache != null)
+                    cache.invalidate(config.address);
+                idle = false;
+            }
+            while ((config = rangeRing.poll()) != null) {
+                r.set(config.address, config.addressBegin, config.addressEnd, config.acceptingRange);
+                if (cache != null)
+                    cache.invalidate(config.addressEnd);
+                idle = false;
+            }
+            if (idle) {
+                if (finished)
+                    return;
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Loads the permissions tables from the snapshot if one exists for these generator parameters. Otherwise
+     * processes the warm-up config packets as initConfig(numPartitions) does and saves the result for the next
+     * run.
+     * @param snapshot snapshot to load or save, or null to always process the warm-up packets
+     * @param numPartitions number of threads applying warm-up config packets
+     */
+    public void initConfig(PermissionSnapshot snapshot, int numPartitions) {
+        if (snapshot == null) {
+            initConfig(numPartitions);
+            return;
+        }
+        try {
+            if (snapshot.load(png, r, source)) {
+                System.out.println("Loaded permissions table from " + snapshot);
+                return;
+            }
+        } catch (IOException e) {
+            // The tables may be partially loaded by now, so there is no falling back to the warm-up
+            throw new UncheckedIOException("Could not load " + snapshot, e);
+        }
+        initConfig(numPartitions);
+        try {
+            snapshot.save(png, r, source);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not save " + snapshot + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns this worker into a classifier of the staged pipeline: it still applies config packets and checks
+     * permissions, but hands accepted data packets to the fingerprint stage instead of fingerprinting them.
+     * Must be called before the worker starts.
+     * @param fingerprinters fingerprint workers, each with one link per classifier indexed by threadID
+     */
+    public void pipeTo(List<FingerprintWorker> fingerprinters) {
+        this.stage = fingerprinters;
+    }
+
     public void run() {
-        histogram = cached;
         switch(queueStrategy) {
-            case 0: runLockFree(); break;
+            case 0:
+                if (rings != null) runLockFreeRing();
+                else if (batchSize > 1) runLockFreeBatched();
+                else runLockFree();
+                break;
             case 1: runRandomQueue(); break;
             case 2: runLastQueue(); break;
+            case 3: runWorkStealing(); break;
         }
         cleanUp();
+        idle.finish();
     }
 
     private void runLockFree() {
         WaitFreeQueue<Packet> queue = queues.get(threadID);
+        BooleanSupplier hasWork = () -> queue.size() > 0;
         while (!done.value) {
             try {
                 Packet pkt = queue.deq();
+                idle.reset();
                 processPacket(pkt);
             } catch (EmptyException e) {
+                idle.idle(hasWork);
+            }
+        }
+    }
+
+    private void runLockFreeRing() {
+        SpscRing<Packet> ring = rings.get(threadID);
+        BooleanSupplier hasWork = () -> ring.size() > 0;
+        while (!done.value) {
+            Packet pkt = ring.poll();
+            if (pkt != null) {
+                idle.reset();
+                processPacket(pkt);
+            } else {
+                idle.idle(hasWork);
+            }
+        }
+    }
+
+    private void runLockFreeBatched() {
+        WaitFreeQueue<Packet> queue = queues.get(threadID);
+        BooleanSupplier hasWork = () -> queue.size() > 0;
+        Packet[] batch = new Packet[batchSize];
+        while (!done.value) {
+            int n = queue.deqBatch(batch, batchSize);
+            if (n == 0) {
+                idle.idle(hasWork);
                 continue;
             }
+            idle.reset();
+            for (int i = 0; i < n; i++)
+                processPacket(batch[i]);
         }
     }
 
@@ -109,12 +309,29 @@ class ParallelWorker implements FirewallWorker {
         return id;
     }
 
+    /**
+     * @param start queue the sweep starts after
+     * @return the first queue after start, wrapping around to start itself, that holds packets, or -1 if every
+     *         queue is empty
+     */
+    private int nextNonEmpty(int start) {
+        for (int k = 1; k <= numWorkers; k++) {
+            int id = start + k < numWorkers ? start + k : start + k - numWorkers;
+            if (queues.get(id).size() > 0)
+                return id;
+        }
+        return -1;
+    }
+
     private void runLastQueue() {
         int id;
         Random rand = new Random();
         WaitFreeQueue<Packet> queue;
         Lock lock;
 
+        // Idle only once no queue has packets, since any of them can feed this worker
+        BooleanSupplier hasWork = () -> nextNonEmpty(threadID) >= 0;
+
         // Choose a random uncontended queue
         id = pickUncontendedID(rand);
         lock = locks.get(id);
@@ -130,10 +347,15 @@ class ParallelWorker implements FirewallWorker {
                 lock.unlock();
             }
             if (pkt != null) {
+                idle.reset();
                 processPacket(pkt);
             } else {
-                // Pick another random uncontended queue
-                id = pickUncontendedID(rand);
+                // Move on to the next queue with packets, or idle and pick another random uncontended queue
+                id = nextNonEmpty(id);
+                if (id < 0) {
+                    idle.idle(hasWork);
+                    id = pickUncontendedID(rand);
+                }
                 lock = locks.get(id);
                 queue = queues.get(id);
             }
@@ -145,9 +367,18 @@ class ParallelWorker implements FirewallWorker {
         WaitFreeQueue<Packet> queue;
         Lock lock;
         Packet pkt;
+        // Idle only once no queue has packets, since any of them can feed this worker
+        BooleanSupplier hasWork = () -> nextNonEmpty(threadID) >= 0;
         while (!done.value) {
-            // Choose a random queue
+            // Choose a random queue, or the next one with packets if it is empty
             int id = rand.nextInt(numWorkers);
+            if (queues.get(id).size() == 0) {
+                id = nextNonEmpty(id);
+                if (id < 0) {
+                    idle.idle(hasWork);
+                    continue;
+                }
+            }
             queue = queues.get(id);
             lock = locks.get(id);
 
@@ -160,32 +391,89 @@ class ParallelWorker implements FirewallWorker {
             } finally {
                 lock.unlock();
             }
-            if (pkt != null)
+            if (pkt != null) {
+                idle.reset();
                 processPacket(pkt);
+            }
         }
     }
 
-    public Histogram getHistogram() {
-        return histogram;
+    /**
+     * Moves the packets the dispatcher left in this worker's queue into its deque, where idle workers can
+     * steal them, and processes packets from the bottom of the deque. Once both are empty, steals half of a
+     * random victim's deque.
+     */
+    private void runWorkStealing() {
+        WaitFreeQueue<Packet> queue = queues.get(threadID);
+        WorkStealingDeque<Packet> deque = deques.get(threadID);
+        Packet[] batch = new Packet[queue.capacity()];
+        Random rand = new Random();
+        BooleanSupplier hasWork = () -> queue.size() > 0 || deque.size() > 0;
+        while (!done.value) {
+            int room = Math.min(batch.length, deque.capacity() - deque.size());
+            int n = room > 0 ? queue.deqBatch(batch, room) : 0;
+            for (int i = 0; i < n; i++)
+                deque.push(batch[i]);
+            Packet pkt = deque.pop();
+            if (pkt == null && numWorkers > 1)
+                pkt = stealHalf(deque, rand);
+            if (pkt != null) {
+                idle.reset();
+                processPacket(pkt);
+            } else {
+                idle.idle(hasWork);
+            }
+        }
     }
 
-    public void printHistogram() {
-        System.out.println(histogram);
+    /**
+     * Steals half the packets of a random victim one CAS at a time, keeping the first and pushing the rest onto
+     * this worker's deque.
+     * @return a stolen packet, or null if the victim had none to spare
+     */
+    private Packet stealHalf(WorkStealingDeque<Packet> deque, Random rand) {
+        int victim = rand.nextInt(numWorkers - 1);
+        if (victim >= threadID) victim++;
+        WorkStealingDeque<Packet> victimDeque = deques.get(victim);
+        Packet first = victimDeque.steal();
+        if (first == null)
+            return null;
+        int toSteal = Math.min(victimDeque.size() / 2, deque.capacity() - deque.size());
+        for (int i = 0; i < toSteal; i++) {
+            Packet pkt = victimDeque.steal();
+            if (pkt == null)
+                break;
+            deque.push(pkt);
+        }
+        return first;
     }
 
     /**
-     * Executes the task specified by the packet
+     * Executes the task specified by the packet, then releases it in case it came from a PacketPool. When piped
+     * to a fingerprint stage, accepted data packets are handed over instead, and the stage releases them.
      * @param pkt packet
      */
     private void processPacket(Packet pkt) {
+        final long enqueueNanos = pkt.enqueueNanos;
+        totalPackets++;
         switch (pkt.type) {
         case ConfigPacket:
             handleConfigPacket(pkt.config);
             break;
         case DataPacket:
-            handleDataPacket(pkt.header, pkt.body);
+            if (lane != null)
+                lane.awaitApplied(pkt.configSeq);
+            if (stage == null) {
+                handleDataPacket(pkt.header, pkt.body);
+            } else if (isPermitted(pkt.header)) {
+                forward(pkt);
+                return;
+            }
             break;
         }
+        if (enqueueNanos != 0)
+            latency.record(System.nanoTime() - enqueueNanos);
+        pkt.release();
     }
 
     /**
@@ -197,40 +485,92 @@ class ParallelWorker implements FirewallWorker {
      * @param body packet body
      */
     private void handleDataPacket(Header header, Body body) {
+        if (!isPermitted(header)) {
+            return;
+        }
+
+        // Process the packet
+        int fprnt = fingerprint.getFingerprint(body.iterations, body.seed);
+        histogram.add(fprnt);
+    }
+
+    /**
+     * @return true iff the packet has the appropriate permissions, which are remembered for the rest of its train
+     */
+    private boolean isPermitted(Header header) {
         final int source = header.source;
         final int dest = header.dest;
 
         // The packet does not have the appropriate permissions
-        if (header.tag != tag) {
-            try {
-                globalLock.readLock().lock();
-                if (!png.isValid(source) || !r.isValid(source, dest)) {
+        trainLookups++;
+        if (cache != null) {
+            if (!isValidCached(header.tag, source, dest)) {
+                return false;
+            }
+        } else if (header.tag != tag) {
+            if (!png.isValid(source) || !r.isValid(source, dest)) {
+                return false;
+            }
+        } else {
+            trainHits++;
+        }
+        tag = header.tag;
+        return true;
+    }
+
+    /**
+     * Hands an accepted packet to the next fingerprint worker with room on its link from this worker, waiting
+     * for room as that worker's idle strategy says if every link is full.
+     */
+    private void forward(Packet pkt) {
+        final int numLinks = stage.size();
+        while (true) {
+            for (int k = 0; k < numLinks; k++) {
+                FingerprintWorker next = stage.get(nextLink);
+                nextLink = (nextLink + 1 == numLinks) ? 0 : nextLink + 1;
+                if (next.links.get(threadID).offer(pkt)) {
+                    next.idle.wake();
+                    forwardedPackets++;
                     return;
                 }
-            } finally {
-                globalLock.readLock().unlock();
             }
+            stage.get(nextLink).idle.awaitRoom();
         }
+    }
 
-        // Process the packet
-        int fprnt = fingerprint.getFingerprint(body.iterations, body.seed);
-        histogram.add(fprnt);
-        tag = header.tag;
+    /**
+     * Checks the permissions of a packet train through the shared verdict cache, computing and caching the
+     * verdict on a miss.
+     * @return true iff the source is allowed to send packets to the destination
+     */
+    private boolean isValidCached(int tag, int source, int dest) {
+        int verdict = cache.get(tag, source, dest);
+        if (verdict != VerdictCache.MISS) {
+            trainHits++;
+            return verdict == VerdictCache.ACCEPT;
+        }
+
+        // Read the epochs first, so a concurrent config packet invalidates the verdict we are about to cache
+        final int sourceEpoch = cache.epoch(source);
+        final int destEpoch = cache.epoch(dest);
+        boolean valid = png.isValid(source) && r.isValid(source, dest);
+        cache.put(tag, source, dest, sourceEpoch, destEpoch, valid);
+        return valid;
     }
 
     /**
      * Modifies the permissions of a particular address in both source and destination contexts.
-     * Serializable with other configuration packets.
+     * Serializable with other configuration packets for the same address; PDestination locks per destination.
      * @param config packet configuration
      */
     private void handleConfigPacket(Config config) {
         final int address = config.address;
         png.set(address, config.personaNonGrata);
-        try {
-            globalLock.writeLock().lock();
-            r.set(address, config.addressBegin, config.addressEnd, config.acceptingRange);
-        } finally {
-            globalLock.writeLock().unlock();
+        r.set(address, config.addressBegin, config.addressEnd, config.acceptingRange);
+        if (cache != null) {
+            // PSource is keyed by the address and PDestination by the end of the range
+            cache.invalidate(address);
+            cache.invalidate(config.addressEnd);
         }
     }
 
@@ -238,6 +578,17 @@ class ParallelWorker implements FirewallWorker {
      * Leave the queue corresponding to its thread id empty before finishing
      */
     private void cleanUp() {
+        if (rings != null) {
+            Packet pkt;
+            while ((pkt = rings.get(threadID).poll()) != null)
+                processPacket(pkt);
+            return;
+        }
+        if (deques != null) {
+            Packet pkt;
+            while ((pkt = deques.get(threadID).pop()) != null)
+                processPacket(pkt);
+        }
         WaitFreeQueue<Packet> queue = queues.get(threadID);
         while (true) {
             try {
@@ -1,5 +1,8 @@
 package pset6;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 interface FirewallWorker extends Runnable {
     public void run();
 }
@@ -45,6 +48,33 @@ class SerialWorker implements FirewallWorker {
         System.out.println("DONE");
     }
 
+    /**
+     * Loads the permissions tables from the snapshot if one exists for these generator parameters. Otherwise
+     * processes the warm-up config packets as initConfig() does and saves the result for the next run.
+     * @param snapshot snapshot to load or save, or null to always process the warm-up packets
+     */
+    public void initConfig(PermissionSnapshot snapshot) {
+        if (snapshot == null) {
+            initConfig();
+            return;
+        }
+        try {
+            if (snapshot.load(png, r, source)) {
+                System.out.println("Loaded permissions table from " + snapshot);
+                return;
+            }
+        } catch (IOException e) {
+            // The tables may be partially loaded by now, so there is no falling back to the warm-up
+            throw new UncheckedIOException("Could not load " + snapshot, e);
+        }
+        initConfig();
+        try {
+            snapshot.save(png, r, source);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not save " + snapshot + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Print a graphical representation of the fingerprint histogram data, where the x-axis is divided into
      * buckets based on the [0, 2^16) possible fingerprints and the y-axis is the frequency of each bucket.
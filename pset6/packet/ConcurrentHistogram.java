@@ -0,0 +1,122 @@
+package pset6;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of fingerprints that many workers add to at once.
+ *
+ * Every worker adds to its own shard, so increments are never contended. A shard's buckets are padded away
+ * from its neighbours', and each bucket has a single writer and only grows. snapshot() can therefore be called
+ * while the workers are running: it may miss adds made while it copies, but never goes backwards.
+ */
+class ConcurrentHistogram {
+
+    static final int PAD = 16;  // longs between shards, two cache lines
+
+    /**
+     * The buckets one worker adds to. Single writer.
+     */
+    static final class Shard {
+        final AtomicLongArray counts;
+        final int bucketSize;
+
+        Shard(int numBuckets, int bucketSize) {
+            this.counts = new AtomicLongArray(PAD + numBuckets + PAD);
+            this.bucketSize = bucketSize;
+        }
+
+        /**
+         * Owner only. Adds a value to the histogram.
+         * @param val value to add to the histogram
+         */
+        public void add(int val) {
+            final int i = PAD + val / bucketSize;
+            counts.lazySet(i, counts.get(i) + 1);
+        }
+
+        /**
+         * Copies the buckets into dst, each as of some moment during the copy.
+         */
+        void copyTo(long[] dst) {
+            for (int i = 0; i < dst.length; i++) {
+                dst[i] = counts.get(PAD + i);
+            }
+        }
+    }
+
+    final int maxValue;
+    final int numBuckets;
+    final int bucketSize;
+    private final Shard[] shards;
+
+    /**
+     * @param numShards number of threads adding to the histogram
+     */
+    public ConcurrentHistogram(int numShards) {
+        this(numShards, 1 << 7);
+    }
+
+    public ConcurrentHistogram(int numShards, int numBuckets) {
+        this.maxValue = 1 << 16;
+        this.numBuckets = numBuckets;
+        this.bucketSize = maxValue / numBuckets;
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard(numBuckets, bucketSize);
+        }
+    }
+
+    /**
+     * @param id id of the thread that adds to the shard
+     * @return the shard the thread adds to
+     */
+    public Shard shard(int id) {
+        return shards[id];
+    }
+
+    /**
+     * @return a histogram of every value added so far, which may be called while values are being added
+     */
+    public Histogram snapshot() {
+        Histogram histogram = new Histogram(numBuckets);
+        long[] counts = new long[numBuckets];
+        for (Shard shard : shards) {
+            shard.copyTo(counts);
+            histogram.merge(counts);
+        }
+        return histogram;
+    }
+}
+
+class ConcurrentHistogramTest {
+    public static void main(String[] args) throws InterruptedException {
+        final int numThreads = 4;
+        final int numValues = 1000000;
+        final ConcurrentHistogram histogram = new ConcurrentHistogram(numThreads);
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final ConcurrentHistogram.Shard shard = histogram.shard(i);
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < numValues; j++) {
+                    shard.add(j & 0xffff);
+                }
+            });
+            threads[i].start();
+        }
+
+        // Live snapshots never go backwards
+        long last = 0;
+        boolean monotonic = true;
+        for (int i = 0; i < 100; i++) {
+            long total = histogram.snapshot().getTotalPackets();
+            monotonic &= total >= last;
+            last = total;
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        final long total = histogram.snapshot().getTotalPackets();
+        System.out.println(monotonic && total == (long) numThreads * numValues ?
+                "Counted every value" : "ERROR: Counted " + total + " values, monotonic = " + monotonic);
+    }
+}
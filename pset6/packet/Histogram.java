@@ -33,6 +33,26 @@ class Histogram {
         buckets[bucketNum]++;
     }
 
+    /**
+     * Adds every value of another histogram with the same buckets to this one
+     * @param other histogram to add
+     */
+    public void merge(Histogram other) {
+        for (int i = 0; i < numBuckets; i++) {
+            buckets[i] += other.buckets[i];
+        }
+    }
+
+    /**
+     * Adds bucket counts to this histogram
+     * @param counts number of values in each bucket
+     */
+    public void merge(long[] counts) {
+        for (int i = 0; i < numBuckets; i++) {
+            buckets[i] += (int) counts[i];
+        }
+    }
+
     public long getTotalPackets() {
         long sum = 0;
         for (int i = 0; i < numBuckets; i++) {
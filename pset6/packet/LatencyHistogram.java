@@ -0,0 +1,104 @@
+package pset6;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ *
+ * Values below 2 * SUB_BUCKETS get a bucket each. Above that, every power of two is split into SUB_BUCKETS
+ * equal buckets, so a percentile is off by at most 1 / SUB_BUCKETS of its value. Recording is a couple of
+ * shifts and an increment. Each worker records into its own histogram and the driver merges them at the end.
+ */
+class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    long count = 0;
+    long max = 0;
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a latency. Single writer.
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[indexOf(nanos)]++;
+        count++;
+        if (nanos > max) max = nanos;
+    }
+
+    /**
+     * Adds every latency recorded by another histogram to this one.
+     * @param other histogram to add, no longer being recorded into
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param percentile percentile in [0, 100]
+     * @return a latency at least as large as the given percentage of the recorded latencies
+     */
+    public long percentile(double percentile) {
+        if (count == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueAt(i), max);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us over %d samples",
+                percentile(50) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3, max / 1e3, count);
+    }
+}
+
+class LatencyHistogramTest {
+    public static void main(String[] args) {
+        // Every bucket starts right after the previous one ends
+        boolean contiguous = true;
+        for (int i = 1; i < 1500; i++) {
+            final long start = LatencyHistogram.highestValueAt(i - 1) + 1;
+            contiguous &= LatencyHistogram.indexOf(start - 1) == i - 1 && LatencyHistogram.indexOf(start) == i;
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 1000000; v++) {
+            histogram.record(v);
+        }
+        final long p50 = histogram.percentile(50);
+        final long p99 = histogram.percentile(99);
+        final boolean accurate = Math.abs(p50 - 500000) <= 500000 / LatencyHistogram.SUB_BUCKETS &&
+                Math.abs(p99 - 990000) <= 990000 / LatencyHistogram.SUB_BUCKETS &&
+                histogram.percentile(100) == 1000000;
+        System.out.println(contiguous && accurate ? "Percentiles are within a sub-bucket" :
+                "ERROR: contiguous = " + contiguous + ", " + histogram);
+    }
+}
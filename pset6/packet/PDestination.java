@@ -1,18 +1,77 @@
 package pset6;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Which sources each destination accepts packets from.
+ *
+ * Each destination keeps a RangeList of accepted sources. Address spaces of at most 2^maxDenseLog addresses
+ * instead keep a dense bit matrix with one row per destination, where isValid() is a single bit test without
+ * a lock and set() fills whole words at a time. At the default of 2^12 addresses the matrix takes 2 MB.
+ */
 class PDestination {
 
+    // -DmaxDenseLog=: largest numAddressesLog kept as a bit matrix, -1 never uses one
+    static final int DEFAULT_MAX_DENSE_LOG = Integer.getInteger("maxDenseLog", 12);
+
     final HashTable<RangeList> table;
+    final ReentrantReadWriteLock[] locks;
+    final int lockMask;
+    final int maxLogLocks = 8;
+    final int rangeListType;  // 0=SkipRangeList, 1=ArrayRangeList
     final int minAddress;
     final int maxAddress;
     final int logSize = 4;
     final int maxBucketSize = 4;
     final int maxProbes = 4;
 
+    // Bit matrix: row d holds bit s iff destination d accepts source s, for s in [minAddress, maxAddress] like a
+    // fresh RangeList. Rows never share a word, so the write lock of a row covers all of its words.
+    final AtomicLongArray dense;
+    final int rowWords;
+    final boolean[] touched;  // rows set() or load() wrote, which the sparse table would hold a list for
+
     public PDestination(int numAddressesLog) {
+        this(numAddressesLog, 0);
+    }
+
+    public PDestination(int numAddressesLog, int rangeListType) {
+        this(numAddressesLog, rangeListType, DEFAULT_MAX_DENSE_LOG);
+    }
+
+    /**
+     * @param maxDenseLog largest numAddressesLog kept as a bit matrix, -1 never uses one
+     */
+    public PDestination(int numAddressesLog, int rangeListType, int maxDenseLog) {
+        this.rangeListType = rangeListType;
         minAddress = 0;
         maxAddress = 1 << numAddressesLog;
         table = new ArrayHashTable<RangeList>(numAddressesLog);
+        if (numAddressesLog <= maxDenseLog) {
+            rowWords = (maxAddress + 1 + 63) >>> 6;
+            dense = new AtomicLongArray(maxAddress * rowWords);
+            touched = new boolean[maxAddress];
+            for (int row = 0; row < maxAddress; row++) {
+                fill(row, minAddress, maxAddress + 1, true);
+            }
+        } else {
+            rowWords = 0;
+            dense = null;
+            touched = null;
+        }
+
+        // Striped locks: every destination maps onto one of at most 2^maxLogLocks read-write locks
+        final int numLocks = 1 << Math.min(numAddressesLog, maxLogLocks);
+        lockMask = numLocks - 1;
+        locks = new ReentrantReadWriteLock[numLocks];
+        for (int i = 0; i < numLocks; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
     }
 
     /**
@@ -22,35 +81,174 @@ class PDestination {
      * @return true iff the source is allowed to send packets to the destination
      */
     public boolean isValid(int source, int destination) {
-        RangeList list = table.get(destination);
+        if (dense != null) {
+            return (dense.get(destination * rowWords + (source >>> 6)) & (1L << source)) != 0;
+        }
 
-        // If the list does not exist, allow the packet to go through
-        if (list == null) {
-            return true;
-        } else {
-            return list.contains(source);
+        // Array range lists publish immutable snapshots, so readers never need the lock
+        if (rangeListType == 1) {
+            RangeList list = table.get(destination);
+            return list == null || list.contains(source);
+        }
+
+        ReentrantReadWriteLock.ReadLock lock = locks[destination & lockMask].readLock();
+        lock.lock();
+        try {
+            RangeList list = table.get(destination);
+
+            // If the list does not exist, allow the packet to go through
+            if (list == null) {
+                return true;
+            } else {
+                return list.contains(source);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * Modifies address to either accept or reject the range of addresses from [addressBegin, addressEnd),
-     * depending on the boolean value of acceptingRange.
+     * depending on the boolean value of acceptingRange. Serializable with other updates to the same list.
      * @param sourceAddress the address whose permissions are to be modified
      * @param addressBegin range start, inclusive
      * @param addressEnd range end, exclusive
      * @param acceptingRange true iff the address should accept this range
      */
     public void set(int sourceAddress, int addressBegin, int addressEnd, boolean acceptingRange) {
-        RangeList list = table.get(addressEnd);
-        if (list == null) {
-            list = new RangeList(minAddress, maxAddress);
-            table.add(addressEnd, list);
+        ReentrantReadWriteLock.WriteLock lock = locks[addressEnd & lockMask].writeLock();
+        lock.lock();
+        try {
+            if (dense != null) {
+                touched[addressEnd] = true;
+                fill(addressEnd, addressBegin, addressEnd, acceptingRange);
+                return;
+            }
+            RangeList list = table.get(addressEnd);
+            if (list == null) {
+                list = newRangeList();
+                table.add(addressEnd, list);
+            }
+            if (acceptingRange) {
+                list.add(addressBegin, addressEnd);
+            } else {
+                list.remove(addressBegin, addressEnd);
+            }
+        } finally {
+            lock.unlock();
         }
-        if (acceptingRange) {
-            list.add(addressBegin, addressEnd);
-        } else {
-            list.remove(addressBegin, addressEnd);
+    }
+
+    /**
+     * Sets or clears the bits [begin, end) of a row, a word at a time. The caller holds the row's write lock.
+     */
+    private void fill(int row, int begin, int end, boolean value) {
+        if (begin >= end) return;
+        final int base = row * rowWords;
+        final int first = begin >>> 6;
+        final int last = (end - 1) >>> 6;
+        for (int w = first; w <= last; w++) {
+            long mask = -1L;
+            if (w == first) mask &= -1L << begin;
+            if (w == last) mask &= -1L >>> (63 - ((end - 1) & 63));
+            final long old = dense.get(base + w);
+            dense.set(base + w, value ? old | mask : old & ~mask);
+        }
+    }
+
+    /**
+     * @return the first column at or after from whose bit in the row equals value, or maxAddress + 1 if none
+     */
+    private int nextBit(int row, int from, boolean value) {
+        final int numColumns = maxAddress + 1;
+        if (from >= numColumns) return numColumns;
+        final int base = row * rowWords;
+        int w = from >>> 6;
+        long word = (value ? dense.get(base + w) : ~dense.get(base + w)) & (-1L << from);
+        while (word == 0) {
+            if (++w == rowWords) return numColumns;
+            word = value ? dense.get(base + w) : ~dense.get(base + w);
+        }
+        return Math.min(numColumns, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * @return the ranges of a row as RangeList.toArray() would return them
+     */
+    private int[] rowToArray(int row) {
+        int numRanges = 0;
+        for (int begin = nextBit(row, minAddress, true); begin <= maxAddress;
+             begin = nextBit(row, nextBit(row, begin, false), true)) {
+            numRanges++;
+        }
+        int[] array = new int[2 * numRanges];
+        int i = 0;
+        for (int begin = nextBit(row, minAddress, true); begin <= maxAddress; ) {
+            final int end = nextBit(row, begin, false);
+            array[i++] = begin;
+            array[i++] = end;
+            begin = end <= maxAddress ? nextBit(row, end, true) : end;
+        }
+        return array;
+    }
+
+    /**
+     * Writes every range list for PermissionSnapshot as its key, its number of ranges and its begin, end
+     * pairs, followed by a -1 key. Must not run concurrently with set().
+     * @param out stream to write to
+     */
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(maxAddress);
+        for (int i = 0; i < maxAddress; i++) {
+            int[] ranges;
+            if (dense != null) {
+                if (!touched[i]) continue;
+                ranges = rowToArray(i);
+            } else {
+                RangeList list = table.get(i);
+                if (list == null) continue;
+                ranges = list.toArray();
+            }
+            out.writeInt(i);
+            out.writeInt(ranges.length / 2);
+            for (int x : ranges) {
+                out.writeInt(x);
+            }
         }
+        out.writeInt(-1);
+    }
+
+    /**
+     * Fills an empty table with the range lists written by save().
+     * @param in buffer positioned where save() started writing
+     */
+    public void load(ByteBuffer in) throws IOException {
+        if (in.getInt() != maxAddress)
+            throw new IOException("Snapshot has a different number of addresses");
+        int key;
+        while ((key = in.getInt()) != -1) {
+            int[] ranges = new int[2 * in.getInt()];
+            in.asIntBuffer().get(ranges);
+            in.position(in.position() + 4 * ranges.length);
+            if (dense != null) {
+                touched[key] = true;
+                fill(key, minAddress, maxAddress + 1, false);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    fill(key, ranges[i], ranges[i + 1], true);
+                }
+                continue;
+            }
+            RangeList list = newRangeList();
+            list.load(ranges);
+            table.add(key, list);
+        }
+    }
+
+    private RangeList newRangeList() {
+        if (rangeListType == 1) {
+            return new ArrayRangeList(minAddress, maxAddress);
+        }
+        return new SkipRangeList(minAddress, maxAddress);
     }
 
     /**
@@ -62,15 +260,64 @@ class PDestination {
         long numValid = 0;
         long total = maxAddress * maxAddress;
         for (int i = 0; i < maxAddress; i++) {
+            if (dense != null) {
+                if (!touched[i]) continue;
+                for (int w = 0; w < rowWords; w++) {
+                    numValid += Long.bitCount(dense.get(i * rowWords + w));
+                }
+                continue;
+            }
             RangeList list = table.get(i);
             if (list == null) continue;
-            SequentialSkipList<RangeNode> ranges = list.ranges;
-            SequentialSkipList<RangeNode>.SkipListNode<RangeNode> node = ranges.head.next[0];
-            while (node.value != null) {
-                numValid += node.value.end - node.value.begin;
-                node = node.next[0];
-            }
+            numValid += list.numValid();
         }
         return "acceptingFraction = " + ((double)numValid / total);
     }
-}
\ No newline at end of file
+}
+
+class PDestinationTest {
+    public static void main(String[] args) throws IOException {
+        boolean same = true;
+        for (int numAddressesLog = 6; numAddressesLog <= 10; numAddressesLog++) {
+            final int numAddresses = 1 << numAddressesLog;
+            PDestination dense = new PDestination(numAddressesLog, 0, numAddressesLog);
+            PDestination skip = new PDestination(numAddressesLog, 0, -1);
+            PDestination array = new PDestination(numAddressesLog, 1, -1);
+            same &= dense.dense != null && skip.dense == null && array.dense == null;
+
+            // The same config stream leaves the bit matrix and both kinds of range lists agreeing everywhere
+            PacketGenerator source = new PacketGenerator(numAddressesLog, 6, 5, 1, 3, 3, 100, 0.24, 0.04, 0.5);
+            for (int i = 0; i < 40 * numAddresses; i++) {
+                Config config = source.getConfigPacket().config;
+                for (PDestination r : new PDestination[] { dense, skip, array })
+                    r.set(config.address, config.addressBegin, config.addressEnd, config.acceptingRange);
+            }
+            same &= agree(dense, skip, numAddresses) && agree(dense, array, numAddresses);
+
+            // Snapshots load into the other representation
+            PDestination denseFromSkip = new PDestination(numAddressesLog, 0, numAddressesLog);
+            PDestination skipFromDense = new PDestination(numAddressesLog, 0, -1);
+            denseFromSkip.load(saved(skip));
+            skipFromDense.load(saved(dense));
+            same &= agree(dense, denseFromSkip, numAddresses) && agree(dense, skipFromDense, numAddresses);
+        }
+        System.out.println(same ? "Bit matrix matches the range lists" :
+                "ERROR: Bit matrix differs from the range lists");
+    }
+
+    private static boolean agree(PDestination a, PDestination b, int numAddresses) {
+        for (int dest = 0; dest < numAddresses; dest++) {
+            for (int source = 0; source < numAddresses; source++) {
+                if (a.isValid(source, dest) != b.isValid(source, dest))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer saved(PDestination r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        r.save(new DataOutputStream(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -1,16 +1,19 @@
 package pset6;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 class PSource {
 
-    final HashTable<Boolean> permissions;
-    final int logSize = 4;
-    final int maxBucketSize = 4;
-    final int maxProbes = 4;
+    // One bit per address, set iff the address is persona non grata
+    final AtomicLongArray pngBits;
     final int numAddresses;
 
     public PSource(int numAddressesLog) {
         this.numAddresses = 1 << numAddressesLog;
-        this.permissions = new ArrayHashTable<Boolean>(numAddressesLog);
+        this.pngBits = new AtomicLongArray(Math.max(1, numAddresses >> 6));
     }
 
     /**
@@ -19,12 +22,7 @@ class PSource {
      * @return true iff the address is allowed to send packets
      */
     public boolean isValid(int address) {
-        Boolean val = permissions.get(address);
-        if (val == null) {
-            return true;
-        } else {
-            return val;
-        }
+        return (pngBits.get(address >>> 6) & (1L << address)) == 0;
     }
 
     /**
@@ -33,7 +31,37 @@ class PSource {
      * @param png persona non grata
      */
     public void set(int address, boolean png) {
-        permissions.add(address, !png);
+        final int word = address >>> 6;
+        final long mask = 1L << address;
+        while (true) {
+            long oldBits = pngBits.get(word);
+            long newBits = png ? (oldBits | mask) : (oldBits & ~mask);
+            if (oldBits == newBits || pngBits.compareAndSet(word, oldBits, newBits))
+                return;
+        }
+    }
+
+    /**
+     * Writes the png bits for PermissionSnapshot. Must not run concurrently with set().
+     * @param out stream to write to
+     */
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(pngBits.length());
+        for (int i = 0; i < pngBits.length(); i++) {
+            out.writeLong(pngBits.get(i));
+        }
+    }
+
+    /**
+     * Replaces the png bits with ones written by save().
+     * @param in buffer positioned where save() started writing
+     */
+    public void load(ByteBuffer in) throws IOException {
+        if (in.getInt() != pngBits.length())
+            throw new IOException("Snapshot has a different number of addresses");
+        for (int i = 0; i < pngBits.length(); i++) {
+            pngBits.set(i, in.getLong());
+        }
     }
 
     /**
@@ -50,4 +78,4 @@ class PSource {
         }
         return "pngFraction = " + (1.0 - (double)numValid / numAddresses);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+package pset6;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file holding the permission tables and packet generator state right after the A^(3/2) config packet
+ * warm-up, so later runs with the same generator parameters can load it instead of replaying the warm-up.
+ *
+ * The file starts with a magic number, a version and the generator parameters it was made with, followed by
+ * the generator state, the png bits and every range list. Loading maps the file read-only instead of
+ * reading it through a stream.
+ */
+class PermissionSnapshot {
+
+    static final int MAGIC = 0x50534e50;  // "PSNP"
+    static final int VERSION = 1;
+
+    final File file;
+    final String key;
+
+    /**
+     * @param params generator parameters, e.g. the driver arguments
+     * @return a key naming the parameters and the random stream of -Drng, so snapshots and traces of one
+     *         stream are never loaded under another
+     */
+    static String key(String[] params) {
+        return String.join("_", params) + "_" + RandomGenerator.streamOf(RandomGenerator.DEFAULT_BACKEND);
+    }
+
+    /**
+     * @param dir directory holding the snapshots
+     * @param key generator parameters, e.g. the driver arguments joined by '_'
+     */
+    public PermissionSnapshot(String dir, String key) {
+        this.file = new File(dir, "permissions_" + key + ".snap");
+        this.key = key;
+    }
+
+    /**
+     * Loads the snapshot into freshly constructed tables and generator.
+     * @return true iff a snapshot for these parameters exists and was loaded
+     */
+    public boolean load(PSource png, PDestination r, PacketGenerator source) throws IOException {
+        if (!file.exists())
+            return false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException(file + " is not a permission snapshot");
+            byte[] fileKey = new byte[in.getInt()];
+            in.get(fileKey);
+            if (!key.equals(new String(fileKey, "UTF-8")))
+                throw new IOException(file + " was made with different generator parameters");
+            source.loadState(in);
+            png.load(in);
+            r.load(in);
+            return true;
+        }
+    }
+
+    /**
+     * Writes the tables and generator to a temporary file and renames it into place, so an interrupted save
+     * never leaves a truncated snapshot behind.
+     */
+    public void save(PSource png, PDestination r, PacketGenerator source) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tmp = File.createTempFile("permissions", ".tmp", dir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            byte[] fileKey = key.getBytes("UTF-8");
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fileKey.length);
+            out.write(fileKey);
+            source.saveState(out);
+            png.save(out);
+            r.save(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
+
+class PermissionSnapshotTest {
+    public static void main(String[] args) throws IOException {
+        final String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        PermissionSnapshot snapshot = new PermissionSnapshot(dir, "test_" + System.nanoTime());
+
+        // The first worker warms up and saves, the second loads what the first saved
+        SerialWorker warm = new SerialWorker(new PaddedPrimitiveNonVolatile<Boolean>(false),
+                new PacketGenerator(8, 4, 5, 4, 5, 3, 100, 0.1d, 0.2d, 0.8d), 8);
+        SerialWorker loaded = new SerialWorker(new PaddedPrimitiveNonVolatile<Boolean>(false),
+                new PacketGenerator(8, 4, 5, 4, 5, 3, 100, 0.1d, 0.2d, 0.8d), 8);
+        warm.initConfig(snapshot);
+        loaded.initConfig(snapshot);
+        snapshot.file.delete();
+
+        boolean same = warm.png.toString().equals(loaded.png.toString()) &&
+                warm.r.toString().equals(loaded.r.toString());
+        for (int i = 0; i < 1 << 8; i++) {
+            same &= warm.r.isValid(i, i ^ 0x5a) == loaded.r.isValid(i, i ^ 0x5a);
+        }
+        for (int i = 0; i < 10000; i++) {
+            Packet a = warm.source.getPacket();
+            Packet b = loaded.source.getPacket();
+            if (a.type != b.type) {
+                same = false;
+            } else if (a.type == Packet.MessageType.ConfigPacket) {
+                same &= a.config.address == b.config.address && a.config.addressBegin == b.config.addressBegin &&
+                        a.config.addressEnd == b.config.addressEnd;
+            } else {
+                same &= a.header.tag == b.header.tag && a.header.source == b.header.source &&
+                        a.header.dest == b.header.dest && a.body.seed == b.body.seed;
+            }
+        }
+        System.out.println(same ? "Snapshot matches the warm-up" : "ERROR: Snapshot differs from the warm-up");
+    }
+}
@@ -1,5 +1,7 @@
 package pset6;
 
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.atomic.*;
 
 class RangeNode {
@@ -29,7 +31,29 @@ class RangeNode {
     }
 }
 
-class RangeList {
+/**
+ * A set of disjoint address ranges, initially containing every address in [min, max].
+ * Updates to a single RangeList must be serialized by the caller.
+ */
+interface RangeList {
+    public boolean contains(int val);
+    public void add(int begin, int end);
+    public void remove(int begin, int end);
+    public long numValid();
+
+    /**
+     * @return the ranges as begin, end pairs in ascending order
+     */
+    public int[] toArray();
+
+    /**
+     * Replaces the ranges with ones previously returned by toArray().
+     * @param ranges begin, end pairs in ascending order
+     */
+    public void load(int[] ranges);
+}
+
+class SkipRangeList implements RangeList {
 
     // To be replaced with skip lists. Must be some list where all the elements are sorted.
     // A range [a, b) is represented by RangeNode(a, b)
@@ -37,7 +61,7 @@ class RangeList {
     final int min;
     final int max;
 
-    public RangeList(int min, int max) {
+    public SkipRangeList(int min, int max) {
         this.min = min;
         this.max = max + 1;
         ranges = new SequentialSkipList<RangeNode>();
@@ -58,76 +82,103 @@ class RangeList {
     }
 
     /**
-     * Modifies the ranges to include the interval [start, end)
+     * Modifies the ranges to include the interval [start, end). Finds the ranges the interval overlaps or
+     * touches at either end, then replaces the whole run with one merged range, whatever its length.
      * @param begin range begin, inclusive
      * @param end range end, exclusive
      */
     public void add(int begin, int end) {
-        RangeNode pred;
+        if (begin >= end) return;
         int beginToAdd = begin;
         int endToAdd = end;
 
-        // Include begin
-        pred = ranges.findPred(begin).value;
-        if (pred != null && begin < pred.end) {
+        // Extend to the range containing or ending at begin
+        RangeNode pred = ranges.findPred(begin).value;
+        if (pred != null && begin <= pred.end) {
             // Range is already included
             if (end <= pred.end) return;
             beginToAdd = pred.begin;
-            ranges.remove(pred);
         }
 
-        // Include end
-        pred = ranges.findPred(end).value;
-        if (pred != null && end <= pred.end) {
-            endToAdd = pred.end;
-            ranges.remove(pred);
+        // Extend to the range containing or starting at end
+        RangeNode last = ranges.findPred(end).value;
+        if (last != null && end < last.end) {
+            endToAdd = last.end;
         }
 
-        // Add the range
+        // Every range starting in [beginToAdd, endToAdd] is now covered
+        ranges.removeRange(beginToAdd, endToAdd + 1);
         ranges.add(new RangeNode(beginToAdd, endToAdd));
-
-        // Remove overlapping ranges (pred should be the newly-added range)
-        SequentialSkipList<RangeNode>.SkipListNode<RangeNode> currNode = ranges.findCurr(begin);
-        while (currNode.value != null && currNode.value.begin <= endToAdd) {
-            ranges.remove(currNode.value);
-            currNode = currNode.next[0];
-        }
     }
 
     /**
-     * Modifies the ranges to exclude the interval [start, end)
-     * @param start range start, inclusive
+     * Modifies the ranges to exclude the interval [start, end). Splices out every range starting in the
+     * interval at once and keeps the parts of the ranges straddling its ends.
+     * @param begin range start, inclusive
      * @param end range end, exclusive
      */
     public void remove(int begin, int end) {
-        RangeNode pred;
+        if (begin >= end) return;
+        int beginToRemove = begin;
 
-        // Remove begin
-        pred = ranges.findPred(begin).value;
+        // The range straddling begin keeps its part before begin
+        RangeNode pred = ranges.findPred(begin).value;
+        RangeNode head = null;
         if (pred != null && begin < pred.end) {
-            ranges.remove(pred);
-            if (begin > pred.begin)
-                ranges.add(new RangeNode(pred.begin, begin));
-            if (end < pred.end) {
-                ranges.add(new RangeNode(end, pred.end));
-                return;
-            }
+            beginToRemove = pred.begin;
+            if (pred.begin < begin)
+                head = new RangeNode(pred.begin, begin);
         }
 
-        // Remove end
-        pred = ranges.findPred(end).value;
-        if (pred != null && end <= pred.end) {
-            ranges.remove(pred);
-            if (end < pred.end) {
-                ranges.add(new RangeNode(end, pred.end));
-            }
+        // The range straddling end keeps its part from end on
+        RangeNode last = ranges.findPred(end - 1).value;
+        RangeNode tail = null;
+        if (last != null && end < last.end) {
+            tail = new RangeNode(end, last.end);
         }
 
-        // Remove overlapping ranges
-        SequentialSkipList<RangeNode>.SkipListNode<RangeNode> currNode = ranges.findCurr(begin);
-        while (currNode.value != null && currNode.value.end <= end) {
-            ranges.remove(currNode.value);
-            currNode = currNode.next[0];
+        ranges.removeRange(beginToRemove, end);
+        if (head != null)
+            ranges.add(head);
+        if (tail != null)
+            ranges.add(tail);
+    }
+
+    /**
+     * @return the number of values in the ranges
+     */
+    public long numValid() {
+        long numValid = 0;
+        SequentialSkipList<RangeNode>.SkipListNode<RangeNode> node = ranges.head.next[0];
+        while (node.value != null) {
+            numValid += node.value.end - node.value.begin;
+            node = node.next[0];
+        }
+        return numValid;
+    }
+
+    public int[] toArray() {
+        int numRanges = 0;
+        SequentialSkipList<RangeNode>.SkipListNode<RangeNode> node = ranges.head.next[0];
+        while (node.value != null) {
+            numRanges++;
+            node = node.next[0];
+        }
+        int[] array = new int[2 * numRanges];
+        int i = 0;
+        node = ranges.head.next[0];
+        while (node.value != null) {
+            array[i++] = node.value.begin;
+            array[i++] = node.value.end;
+            node = node.next[0];
+        }
+        return array;
+    }
+
+    public void load(int[] array) {
+        ranges = new SequentialSkipList<RangeNode>();
+        for (int i = 0; i < array.length; i += 2) {
+            ranges.add(new RangeNode(array[i], array[i + 1]));
         }
     }
 
@@ -143,9 +194,196 @@ class RangeList {
     }
 }
 
+/**
+ * Read-optimized range list. The ranges are kept as packed sorted arrays of begins and ends that are never
+ * modified once published: every update builds new arrays and swaps them in with a single volatile write,
+ * so contains() never locks and never observes a half-applied add or remove.
+ */
+class ArrayRangeList implements RangeList {
+
+    /**
+     * Immutable snapshot of the ranges [begins[i], ends[i]), sorted, disjoint and non-adjacent.
+     */
+    static final class Ranges {
+        final int[] begins;
+        final int[] ends;
+
+        Ranges(int[] begins, int[] ends) {
+            this.begins = begins;
+            this.ends = ends;
+        }
+    }
+
+    volatile Ranges ranges;
+    final int min;
+    final int max;
+
+    public ArrayRangeList(int min, int max) {
+        this.min = min;
+        this.max = max + 1;
+        ranges = new Ranges(new int[] { this.min }, new int[] { this.max });
+    }
+
+    /**
+     * Returns whether the value is in the range
+     * @param val value to check
+     * @return true iff the value is in the range
+     */
+    public boolean contains(int val) {
+        final Ranges rs = ranges;
+        final int[] begins = rs.begins;
+        int n = begins.length;
+        if (n == 0 || val < begins[0]) return false;
+
+        // Find the last range that begins at or before val
+        int base = 0;
+        while (n > 1) {
+            int half = n >>> 1;
+            base = (begins[base + half] <= val) ? base + half : base;
+            n -= half;
+        }
+        return val < rs.ends[base];
+    }
+
+    /**
+     * Modifies the ranges to include the interval [start, end)
+     * @param begin range begin, inclusive
+     * @param end range end, exclusive
+     */
+    public void add(int begin, int end) {
+        if (begin >= end) return;
+        final Ranges rs = ranges;
+        final int n = rs.begins.length;
+
+        // Ranges lo..hi overlap or touch [begin, end) and are merged into a single range
+        final int lo = firstEndAtLeast(rs.ends, begin);
+        final int hi = firstBeginAbove(rs.begins, end) - 1;
+        final int newBegin = lo <= hi ? Math.min(begin, rs.begins[lo]) : begin;
+        final int newEnd = lo <= hi ? Math.max(end, rs.ends[hi]) : end;
+
+        final int newLength = n - (hi - lo + 1) + 1;
+        int[] begins = new int[newLength];
+        int[] ends = new int[newLength];
+        System.arraycopy(rs.begins, 0, begins, 0, lo);
+        System.arraycopy(rs.ends, 0, ends, 0, lo);
+        begins[lo] = newBegin;
+        ends[lo] = newEnd;
+        System.arraycopy(rs.begins, hi + 1, begins, lo + 1, n - hi - 1);
+        System.arraycopy(rs.ends, hi + 1, ends, lo + 1, n - hi - 1);
+        ranges = new Ranges(begins, ends);
+    }
+
+    /**
+     * Modifies the ranges to exclude the interval [start, end)
+     * @param begin range start, inclusive
+     * @param end range end, exclusive
+     */
+    public void remove(int begin, int end) {
+        if (begin >= end) return;
+        final Ranges rs = ranges;
+        final int n = rs.begins.length;
+
+        // Ranges lo..hi overlap [begin, end); only the parts sticking out on either side survive
+        final int lo = firstEndAtLeast(rs.ends, begin + 1);
+        final int hi = firstBeginAbove(rs.begins, end - 1) - 1;
+        if (lo > hi) return;
+        final boolean keepLeft = rs.begins[lo] < begin;
+        final boolean keepRight = rs.ends[hi] > end;
+
+        final int newLength = n - (hi - lo + 1) + (keepLeft ? 1 : 0) + (keepRight ? 1 : 0);
+        int[] begins = new int[newLength];
+        int[] ends = new int[newLength];
+        System.arraycopy(rs.begins, 0, begins, 0, lo);
+        System.arraycopy(rs.ends, 0, ends, 0, lo);
+        int i = lo;
+        if (keepLeft) {
+            begins[i] = rs.begins[lo];
+            ends[i] = begin;
+            i++;
+        }
+        if (keepRight) {
+            begins[i] = end;
+            ends[i] = rs.ends[hi];
+            i++;
+        }
+        System.arraycopy(rs.begins, hi + 1, begins, i, n - hi - 1);
+        System.arraycopy(rs.ends, hi + 1, ends, i, n - hi - 1);
+        ranges = new Ranges(begins, ends);
+    }
+
+    /**
+     * @return the number of values in the ranges
+     */
+    public long numValid() {
+        final Ranges rs = ranges;
+        long numValid = 0;
+        for (int i = 0; i < rs.begins.length; i++) {
+            numValid += rs.ends[i] - rs.begins[i];
+        }
+        return numValid;
+    }
+
+    public int[] toArray() {
+        final Ranges rs = ranges;
+        int[] array = new int[2 * rs.begins.length];
+        for (int i = 0; i < rs.begins.length; i++) {
+            array[2 * i] = rs.begins[i];
+            array[2 * i + 1] = rs.ends[i];
+        }
+        return array;
+    }
+
+    public void load(int[] array) {
+        int[] begins = new int[array.length / 2];
+        int[] ends = new int[array.length / 2];
+        for (int i = 0; i < begins.length; i++) {
+            begins[i] = array[2 * i];
+            ends[i] = array[2 * i + 1];
+        }
+        ranges = new Ranges(begins, ends);
+    }
+
+    /**
+     * @return index of the first range whose end is at least val, or ends.length if there is none
+     */
+    private static int firstEndAtLeast(int[] ends, int val) {
+        int lo = 0, hi = ends.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < val) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first range whose begin is greater than val, or begins.length if there is none
+     */
+    private static int firstBeginAbove(int[] begins, int val) {
+        int lo = 0, hi = begins.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (begins[mid] <= val) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public String toString() {
+        final Ranges rs = ranges;
+        String str = "";
+        for (int i = 0; i < rs.begins.length; i++) {
+            str += "[" + rs.begins[i] + ", " + rs.ends[i] + ") ";
+        }
+        return str;
+    }
+}
+
 class RangeListTest {
     public static void main(String[] args) {
-        RangeList list = new RangeList(1, 100);
+        RangeList list = args.length > 0 && args[0].equals("array") ?
+                new ArrayRangeList(1, 100) : new SkipRangeList(1, 100);
         System.out.println(list);  // [1, 100)
 
         list.remove(10, 30);
@@ -160,7 +398,10 @@ class RangeListTest {
         System.out.println(list);  // [10, 20) [50, 90) [100, 101)
 
         list.add(15, 92);
-//        System.out.println(list);  // [10, 92) [100, 101)
+        System.out.println(list);  // [10, 92) [100, 101)
+
+        list.add(92, 100);
+        System.out.println(list);  // [10, 101), merged with both neighbours
 
 //        RangeList list = new RangeList(0, 16384);  // [0, 16385)
 //        list.remove(9955, 9990);  // [0, 9955) [9990, 16385)
@@ -172,5 +413,39 @@ class RangeListTest {
 //        System.out.println(list);
 //        list.add(11392, 11471);  // [0, 16835)
 //        System.out.println(list);
+
+        // Random updates leave both kinds of lists holding the same ranges
+        final int numTrials = 2000;
+        Random rand = new Random(1);
+        for (int trial = 0; trial < numTrials; trial++) {
+            final int max = 1 + rand.nextInt(300);
+            RangeList skip = new SkipRangeList(0, max);
+            RangeList array = new ArrayRangeList(0, max);
+            for (int op = 0; op < 100; op++) {
+                int begin = rand.nextInt(max + 1);
+                int end = rand.nextInt(max + 1);
+                if (begin > end) {
+                    int tmp = begin;
+                    begin = end;
+                    end = tmp;
+                }
+                if (rand.nextBoolean()) {
+                    skip.add(begin, end);
+                    array.add(begin, end);
+                } else {
+                    skip.remove(begin, end);
+                    array.remove(begin, end);
+                }
+                boolean same = skip.numValid() == array.numValid() &&
+                        Arrays.equals(skip.toArray(), array.toArray());
+                for (int val = 0; val <= max; val++)
+                    same &= skip.contains(val) == array.contains(val);
+                if (!same) {
+                    System.out.println("ERROR: trial " + trial + ", update " + op + ": " + skip + "!= " + array);
+                    return;
+                }
+            }
+        }
+        System.out.println("SkipRangeList matches ArrayRangeList over " + numTrials + " random trials");
     }
 }
\ No newline at end of file
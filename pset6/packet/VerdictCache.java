@@ -0,0 +1,126 @@
+package pset6;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of permission verdicts keyed by train tag and shared by all workers.
+ *
+ * The cache is split into sets of a few ways each and evicts with the CLOCK algorithm inside a set. Every
+ * address has a permission epoch that is bumped after a config packet changes the address' permissions, and
+ * each entry remembers the epochs of its source and destination when the verdict was computed. An entry is
+ * only a hit while both epochs are unchanged.
+ */
+class VerdictCache {
+
+    static final int MISS = -1;
+    static final int REJECT = 0;
+    static final int ACCEPT = 1;
+
+    static final class Entry {
+        final int tag;
+        final int source;
+        final int dest;
+        final int sourceEpoch;
+        final int destEpoch;
+        final boolean valid;
+        volatile boolean referenced = true;
+
+        Entry(int tag, int source, int dest, int sourceEpoch, int destEpoch, boolean valid) {
+            this.tag = tag;
+            this.source = source;
+            this.dest = dest;
+            this.sourceEpoch = sourceEpoch;
+            this.destEpoch = destEpoch;
+            this.valid = valid;
+        }
+    }
+
+    final int numWays = 4;
+    final int setMask;
+    final AtomicReferenceArray<Entry> entries;
+    final int[] hands;  // CLOCK hand of each set, only a hint so races are harmless
+    final AtomicIntegerArray epochs;
+
+    /**
+     * @param logSize the cache holds up to 2^logSize verdicts
+     * @param numAddressesLog there are 2^numAddressesLog addresses
+     */
+    public VerdictCache(int logSize, int numAddressesLog) {
+        final int numSets = Math.max(1, (1 << logSize) / numWays);
+        this.setMask = Integer.highestOneBit(numSets) - 1;
+        this.entries = new AtomicReferenceArray<Entry>((setMask + 1) * numWays);
+        this.hands = new int[setMask + 1];
+        this.epochs = new AtomicIntegerArray(1 << numAddressesLog);
+    }
+
+    private int setOf(int tag) {
+        int h = tag * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & setMask;
+    }
+
+    /**
+     * @return the current permission epoch of the address, to be read before computing a verdict
+     */
+    public int epoch(int address) {
+        return epochs.get(address);
+    }
+
+    /**
+     * Looks up the verdict for a packet of the train.
+     * @return ACCEPT or REJECT if a verdict computed under the current epochs is cached, otherwise MISS
+     */
+    public int get(int tag, int source, int dest) {
+        final int base = setOf(tag) * numWays;
+        for (int i = 0; i < numWays; i++) {
+            Entry entry = entries.get(base + i);
+            if (entry != null && entry.tag == tag && entry.source == source && entry.dest == dest) {
+                if (entry.sourceEpoch != epochs.get(source) || entry.destEpoch != epochs.get(dest))
+                    return MISS;
+                if (!entry.referenced)
+                    entry.referenced = true;
+                return entry.valid ? ACCEPT : REJECT;
+            }
+        }
+        return MISS;
+    }
+
+    /**
+     * Caches a verdict, evicting the stale entry for the same train or the first unreferenced entry of the set.
+     * @param sourceEpoch epoch of the source read before the verdict was computed
+     * @param destEpoch epoch of the destination read before the verdict was computed
+     */
+    public void put(int tag, int source, int dest, int sourceEpoch, int destEpoch, boolean valid) {
+        final int set = setOf(tag);
+        final int base = set * numWays;
+        final Entry newEntry = new Entry(tag, source, dest, sourceEpoch, destEpoch, valid);
+        for (int i = 0; i < numWays; i++) {
+            Entry entry = entries.get(base + i);
+            if (entry == null || entry.tag == tag) {
+                entries.set(base + i, newEntry);
+                return;
+            }
+        }
+
+        // CLOCK: clear reference bits until an entry that has not been used since the last sweep turns up
+        int hand = hands[set];
+        while (true) {
+            Entry entry = entries.get(base + hand);
+            if (entry == null || !entry.referenced) {
+                entries.set(base + hand, newEntry);
+                hands[set] = (hand + 1) % numWays;
+                return;
+            }
+            entry.referenced = false;
+            hand = (hand + 1) % numWays;
+        }
+    }
+
+    /**
+     * Invalidates every cached verdict involving the address. Must be called after its permissions change.
+     * @param address address whose permissions changed
+     */
+    public void invalidate(int address) {
+        epochs.incrementAndGet(address);
+    }
+}
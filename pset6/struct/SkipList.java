@@ -1,5 +1,7 @@
 package pset6;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 import java.util.concurrent.locks.*;
@@ -12,6 +14,12 @@ interface SkipList<T> {
     boolean add(T x);
     boolean remove(T x);
     boolean contains(T x);
+
+    /**
+     * Removes every element whose key is in [begin, end).
+     * @return the number of elements removed
+     */
+    int removeRange(int begin, int end);
 //    SkipListNode<T> findPred(int key);
 //    SkipListNode<T> findCurr(int key);
 }
@@ -144,6 +152,29 @@ class SequentialSkipList<T> implements SkipList<T> {
         SkipListNode<T> succs[] = (SkipListNode<T>[]) new SkipListNode[MAX_LEVEL + 1];
         return find(x, preds, succs) != -1;
     }
+
+    /**
+     * Finds the last node before begin at every level in one descent, then unlinks the whole run of nodes in
+     * [begin, end) at that level with a single pointer swap. No per-node descents and no allocation.
+     */
+    public int removeRange(int begin, int end) {
+        if (begin >= end) return 0;
+        int removed = 0;
+        SkipListNode<T> pred = head;
+        for (int level = MAX_LEVEL; level >= 0; level--) {
+            SkipListNode<T> curr = pred.next[level];
+            while (begin > curr.key) {
+                pred = curr;
+                curr = pred.next[level];
+            }
+            while (end > curr.key) {
+                if (level == 0) removed++;
+                curr = curr.next[level];
+            }
+            pred.next[level] = curr;
+        }
+        return removed;
+    }
 }
 
 @SuppressWarnings("unchecked")
@@ -335,6 +366,22 @@ class LazySkipList<T> implements SkipList<T> {
         int lFound = find(x, preds, succs);
         return (lFound != -1 && succs[lFound].fullyLinked && !succs[lFound].marked);
     }
+
+    /**
+     * Removes the elements one at a time, so concurrent readers may see part of the range removed.
+     */
+    public int removeRange(int begin, int end) {
+        List<T> victims = new ArrayList<>();
+        for (SkipListNode<T> node = head.next[0]; node.key < end; node = node.next[0]) {
+            if (node.key >= begin && !node.marked)
+                victims.add(node.value);
+        }
+        int removed = 0;
+        for (T x : victims) {
+            if (remove(x)) removed++;
+        }
+        return removed;
+    }
 }
 
 @SuppressWarnings("unchecked")
@@ -581,4 +628,77 @@ class LockFreeSkipList<T> implements SkipList<T> {
         }
         return curr.key == v;
     }
+
+    /**
+     * Removes the elements one at a time, so concurrent readers may see part of the range removed.
+     */
+    public int removeRange(int begin, int end) {
+        List<T> victims = new ArrayList<>();
+        for (SkipListNode<T> node = head.next[0].getReference(); node.key < end;
+             node = node.next[0].getReference()) {
+            if (node.key >= begin && !node.next[0].isMarked())
+                victims.add(node.value);
+        }
+        int removed = 0;
+        for (T x : victims) {
+            if (remove(x)) removed++;
+        }
+        return removed;
+    }
+}
+
+class SkipListTest {
+    public static void main(String[] args) throws InterruptedException {
+        boolean ok = true;
+        List<SkipList<Integer>> lists = new ArrayList<>();
+        lists.add(new SequentialSkipList<Integer>());
+        lists.add(new LazySkipList<Integer>());
+        lists.add(new LockFreeSkipList<Integer>());
+        for (SkipList<Integer> list : lists) {
+            for (int i = 0; i < 100; i++)
+                list.add(i);
+            ok &= list.removeRange(20, 50) == 30;
+            ok &= list.removeRange(20, 50) == 0;  // already gone
+            ok &= list.removeRange(60, 60) == 0;  // empty range
+            ok &= list.removeRange(95, 200) == 5;  // runs past the last key
+            for (int i = 0; i < 100; i++)
+                ok &= list.contains(i) == (i < 20 || (50 <= i && i < 95));
+            if (!ok) {
+                System.out.println("ERROR: " + list.getClass().getSimpleName() + " removed the wrong keys");
+                return;
+            }
+        }
+
+        // Overlapping concurrent removals take each key exactly once
+        final int numKeys = 10000;
+        final int numThreads = 4;
+        for (final SkipList<Integer> list : lists.subList(1, lists.size())) {
+            for (int i = 0; i < numKeys; i++)
+                list.add(i);
+            final int[] removed = new int[numThreads];
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; t++) {
+                final int id = t;
+                threads[t] = new Thread(() -> {
+                    for (int begin = id * 7; begin < numKeys; begin += 1000)
+                        removed[id] += list.removeRange(begin, begin + 1500);
+                });
+                threads[t].start();
+            }
+            int total = 0;
+            for (int t = 0; t < numThreads; t++) {
+                threads[t].join();
+                total += removed[t];
+            }
+            ok &= total == numKeys;
+            for (int i = 0; i < numKeys; i++)
+                ok &= !list.contains(i);
+            if (!ok) {
+                System.out.println("ERROR: " + list.getClass().getSimpleName() + " removed " + total + " of " +
+                        numKeys + " keys concurrently");
+                return;
+            }
+        }
+        System.out.println("removeRange removed every key in range exactly once");
+    }
 }
@@ -0,0 +1,120 @@
+import commands
+import re
+import sys
+
+# [num_addresses_log, num_trains_log, mean_train_size, mean_trains_per_comm,
+# mean_window, mean_comms_per_address, mean_work, config_fraction, png_fraction,
+# accepting_fraction]
+num_ms = 2000
+parameters = (11, 12, 5, 1, 3, 3, 3822, 0.24, 0.04, 0.96)
+num_consumers = [1, 10, 100, 1000]
+# (threads, idle): platform threads spinning on their queues, platform threads blocking, and virtual threads
+# blocking, which falls back to platform threads before Java 21. Every queue strategy parks through the idle
+# strategy, so each one is run in each mode.
+modes = [("Platform", "Spin"), ("Platform", "Block"), ("Virtual", "Block")]
+# LockFree, RandomQueue, LastQueue, WorkStealing
+queue_strategies = [0, 1, 2, 3]
+# The earlier problem sets park through the same idle strategy; run their lock-based strategies in each mode too.
+# pset4 ParallelPacket [numSources] [mean] [uniformFlag] [experimentNumber] [queueDepth] [lockType] [strategy]:
+# HomeQueue, RandomQueue, LastQueue
+pset4_parameters = (1000, 'true', 1, 8, 0)
+pset4_strategies = [1, 2, 3]
+# pset5 ParallelHashPacket [fractionAdd] [fractionRemove] [hitRate] [maxBucketSize] [mean] [initSize] [numWorkers]
+# [tableType], with -DqueueStrategy: RandomQueue, LastQueue
+pset5_parameters = (0.1, 0.1, 0.9, 8, 1000, 1000)
+pset5_strategies = [1, 2]
+num_workers = [1, 2, 4, 8]
+NUM_TRIALS = 1
+
+def format_params(p):
+    return '%d %d %d %d %d %d %d %f %f %f' % (
+        p[0], p[1], p[2], p[3], p[4], p[5], p[6], p[7], p[8], p[9]
+    )
+
+def format_result(mode, results, xs=num_consumers):
+    coordinates = ''.join('\t(%d, %s)\n' % (n, results[n]) for n in xs)
+    return '%% %s\n\\addplot coordinates {\n%s};' % (mode, coordinates)
+
+def run_cmd(cmd, thrpt_pattern='PKT_PER_MS(.*)PKT_PER_MS', has_latency=True):
+    print 'Starting command: %s' % cmd
+
+    outputs = []
+    for _ in xrange(NUM_TRIALS):
+        status, output = commands.getstatusoutput(cmd)
+
+        pkt_per_ms = None
+        p99 = None
+        if status != 0:
+            print '    Status: %d' % status
+        else:
+            result = re.search(thrpt_pattern, output)
+            latency = re.search('p99 ([0-9.]+) us', output)
+            try:
+                pkt_per_ms = float(result.group(1))
+                if has_latency:
+                    p99 = float(latency.group(1))
+            except:
+                print '    Could not parse the throughput or latency'
+
+        outputs.append((pkt_per_ms, p99))
+        print pkt_per_ms, p99
+    print
+
+    outputs.sort()
+    return outputs[int(len(outputs) / 2)]
+
+def run_test():
+
+    thrpt_results = []
+    latency_results = []
+    print '-----------------------------------------------'
+    print 'Starting for params %s' % str(parameters)
+
+    for threads, idle in modes:
+        for strategy in queue_strategies:
+            mode = '<%s, %s, %d>' % (threads, idle, strategy)
+            print mode
+            thrpts = { }
+            latencies = { }
+            for n in num_consumers:
+                cmd = 'java -Dthreads=%s -Didle=%s -DqueueStrategy=%d -DlatencySampleLog=4 ' \
+                      'pset6.ParallelFirewallTest %d %s %d' % (threads, idle, strategy, num_ms,
+                                                              format_params(parameters), n)
+                thrpts[n], latencies[n] = run_cmd(cmd)
+            thrpt_results.append(format_result(mode, thrpts))
+            latency_results.append(format_result(mode, latencies))
+
+        for strategy in pset4_strategies:
+            mode = '<pset4, %s, %s, %d>' % (threads, idle, strategy)
+            print mode
+            thrpts = { }
+            for n in num_workers:
+                cmd = 'java -cp pset4 -Dthreads=%s -Didle=%s ParallelPacket %d %d %s %s %d %d %d %d' % (
+                    threads, idle, num_ms, n, pset4_parameters[0], pset4_parameters[1], pset4_parameters[2],
+                    pset4_parameters[3], pset4_parameters[4], strategy)
+                thrpts[n] = run_cmd(cmd, 'thrpt:\\s*([0-9.]+)', False)[0]
+            thrpt_results.append(format_result(mode, thrpts, num_workers))
+
+        for strategy in pset5_strategies:
+            mode = '<pset5, %s, %s, %d>' % (threads, idle, strategy)
+            print mode
+            thrpts = { }
+            for n in num_workers:
+                cmd = 'java -cp pset5 -Dthreads=%s -Didle=%s -DqueueStrategy=%d ' \
+                      'ParallelHashPacket %d %f %f %f %d %d %d %d LockFreeHashTable' % (
+                          threads, idle, strategy, num_ms, pset5_parameters[0], pset5_parameters[1],
+                          pset5_parameters[2], pset5_parameters[3], pset5_parameters[4], pset5_parameters[5], n)
+                thrpts[n] = run_cmd(cmd, has_latency=False)[0]
+            thrpt_results.append(format_result(mode, thrpts, num_workers))
+
+    print 'PKT_PER_MS'
+    for result in thrpt_results:
+        print result
+    print 'p99 latency (us)'
+    for result in latency_results:
+        print result
+
+##############################################
+
+if __name__ == '__main__':
+    run_test()
@@ -6,7 +6,46 @@ class Fingerprint {
 	private final static long a = 25214903917L;
 	private final static long c = 11L;
 
+	// jumpA[k] and jumpC[k] apply 2^k steps of the LCG at once: seed -> (seed * jumpA[k] + jumpC[k]) & m
+	private final static long[] jumpA = new long[64];
+	private final static long[] jumpC = new long[64];
+
+	// When set (-DverifyFingerprint=true), every fingerprint is computed both ways and the results are compared
+	static boolean verify = Boolean.getBoolean("verifyFingerprint");
+
+	static {
+		jumpA[0] = a;
+		jumpC[0] = c;
+		for (int k = 1; k < 64; k++) {
+			jumpA[k] = (jumpA[k - 1] * jumpA[k - 1]) & m;
+			jumpC[k] = (jumpA[k - 1] * jumpC[k - 1] + jumpC[k - 1]) & m;
+		}
+	}
+
+	/**
+	 * Jumps the LCG ahead by composing the power-of-two steps that make up iterations, so the cost is
+	 * O(log iterations) instead of O(iterations).
+	 */
 	static int getFingerprint(long iterations, long startSeed) {
+		long seed = startSeed;
+		if (iterations > 0) {
+			seed &= m;
+			int k = 0;
+			for (long n = iterations; n != 0; n >>>= 1, k++) {
+				if ((n & 1) != 0)
+					seed = (seed * jumpA[k] + jumpC[k]) & m;
+			}
+		}
+		int fprnt = (int) ((seed >> 12) & 0xFFFFL);
+		if (verify && fprnt != getFingerprintSerial(iterations, startSeed))
+			throw new IllegalStateException("Fingerprint mismatch for seed " + startSeed);
+		return fprnt;
+	}
+
+	/**
+	 * Steps the LCG one iteration at a time.
+	 */
+	static int getFingerprintSerial(long iterations, long startSeed) {
 		long seed = startSeed;
 		for (long i = 0; i < iterations; i++) {
 			seed = (seed * a + c) & m;
@@ -14,3 +53,21 @@ class Fingerprint {
 		return (int) ((seed >> 12) & 0xFFFFL);
 	}
 }
+
+class FingerprintTest {
+	public static void main(String[] args) {
+		final int numTrials = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		java.util.Random rand = new java.util.Random(1);
+		for (int i = 0; i < numTrials; i++) {
+			long iterations = rand.nextInt(20000) - 10;
+			long seed = rand.nextLong();
+			int fast = Fingerprint.getFingerprint(iterations, seed);
+			int slow = Fingerprint.getFingerprintSerial(iterations, seed);
+			if (fast != slow) {
+				System.out.println("MISMATCH: iterations=" + iterations + " seed=" + seed + " " + fast + " != " + slow);
+				return;
+			}
+		}
+		System.out.println("OK: " + numTrials + " fingerprints match");
+	}
+}
@@ -16,6 +16,9 @@ class UniformGenerator {
   public UniformGenerator() {
     randGen = new RandomGenerator();
   }
+  public UniformGenerator(RandomGenerator.Backend backend) {
+    randGen = new RandomGenerator(backend);
+  }
   int getRand(int minValue, int maxValue) { // [minValue,maxValue) like indexing
     return ( randGen.getRand()  % (maxValue-minValue) ) + minValue;
   }
@@ -42,8 +45,11 @@ class ExponentialGenerator {
   final double logBase = 20.795; // ln(2^30 - 1)
   final int base = 1073741824; // 2^30
   public ExponentialGenerator(double mean) {
+    this(mean, RandomGenerator.DEFAULT_BACKEND);
+  }
+  public ExponentialGenerator(double mean, RandomGenerator.Backend backend) {
     this.mean = mean;
-    randGen = new RandomGenerator();
+    randGen = new RandomGenerator(backend);
   }
   int getRand() {
     return (int) Math.ceil(mean*(logBase-Math.log(base-randGen.getRand())));
@@ -54,15 +60,49 @@ class ExponentialGenerator {
   public int mangle(int seed) { return randGen.mangle(seed); }
 }
 
+// Crc:      the original bit-serial CRC, 31 iterations per number
+// CrcTable: the same sequence, with the CRC computed from four byte tables
+// SplitMix: a different, faster sequence for throughput runs; mangle() stays
+//           the CRC so addresses are still spread the same way
 class RandomGenerator {
+  enum Backend { Crc, CrcTable, SplitMix }
+  // -Drng=: backend of generators that are not given one
+  static final Backend DEFAULT_BACKEND =
+    Backend.valueOf(System.getProperty("rng", "Crc"));
+  // name of the sequence a backend produces; Crc and CrcTable share one
+  static String streamOf(Backend backend) {
+    return backend == Backend.SplitMix ? "SplitMix" : "Crc";
+  }
+  static final int CRC_POLY = 954680065; // 0x38E74301 - standard CRC30 from CDMA
+  // mangle() only shifts and xors, so it is linear over GF(2): the CRC of a
+  // number is the xor of the CRCs of its four bytes in place
+  static final int[][] CRC_TABLES = new int[4][256];
+  static {
+    for( int k = 0; k < 4; k++ )
+      for( int b = 0; b < 256; b++ )
+        CRC_TABLES[k][b] = mangleSerial(b << (8 * k));
+  }
+  final Backend backend;
   int seed;
   public RandomGenerator(int seed) {
     this.seed = seed;
+    this.backend = DEFAULT_BACKEND;
   }
   public RandomGenerator() {
+    this(DEFAULT_BACKEND);
+  }
+  public RandomGenerator(Backend backend) {
     this.seed = 59009;
+    this.backend = backend;
   }
   int getRand() {
+    if( backend == Backend.SplitMix ) {
+      // seed is the counter of a SplitMix64 stream; keep 30 bits like the CRC
+      long z = (++seed) * 0x9E3779B97F4A7C15L;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return (int) ((z ^ (z >>> 31)) >>> 34);
+    }
     seed = mangle(seed) + 1;
     return seed;
   }
@@ -70,7 +110,12 @@ class RandomGenerator {
     this.seed = seed;
   }
   public int mangle(int seed) { 
-    final int CRC_POLY = 954680065; // 0x38E74301 - standard CRC30 from CDMA
+    if( backend == Backend.Crc )
+      return mangleSerial(seed);
+    return CRC_TABLES[0][seed & 0xff] ^ CRC_TABLES[1][(seed >>> 8) & 0xff] ^
+      CRC_TABLES[2][(seed >>> 16) & 0xff] ^ CRC_TABLES[3][seed >>> 24];
+  }
+  static int mangleSerial(int seed) {
     final int iterations = 31;
     int crc = seed;
     for( int i = 0; i < iterations; i++ ) {
@@ -83,3 +128,31 @@ class RandomGenerator {
   }
 }
 
+class RandomGeneratorTest {
+  public static void main(String[] args) {
+    // the table CRC must reproduce the bit-serial one exactly
+    RandomGenerator serial = new RandomGenerator(RandomGenerator.Backend.Crc);
+    RandomGenerator table = new RandomGenerator(RandomGenerator.Backend.CrcTable);
+    java.util.Random rand = new java.util.Random(6816);
+    boolean same = true;
+    for( int i = 0; i < 1000000; i++ ) {
+      int x = rand.nextInt();
+      same &= serial.mangle(x) == table.mangle(x);
+      same &= serial.getRand() == table.getRand();
+    }
+    System.out.println(same ? "CrcTable matches Crc" : "ERROR: CrcTable differs from Crc");
+
+    // every backend must stay in [0, 2^30) for getUnitRand and ExponentialGenerator
+    for( RandomGenerator.Backend backend : RandomGenerator.Backend.values() ) {
+      RandomGenerator gen = new RandomGenerator(backend);
+      int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+      for( int i = 0; i < 1000000; i++ ) {
+        int x = gen.getRand();
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+      }
+      System.out.println(backend + ": [" + min + ", " + max + "]");
+    }
+  }
+}
+
@@ -0,0 +1,80 @@
+package pset6;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer.
+ *
+ * Unlike WaitFreeQueue, a full or empty ring is reported through the return value instead of an exception.
+ * The producer's and consumer's indices live on separate cache lines, and each side keeps a cached copy of
+ * the other side's index so it only reads the contended line when the ring looks full or empty.
+ */
+class SpscRing<T> {
+    long pad01, pad02, pad03, pad04, pad05, pad06, pad07;
+
+    // Producer side
+    volatile long tail;
+    long headCache;
+    long pad11, pad12, pad13, pad14, pad15, pad16, pad17;
+
+    // Consumer side
+    volatile long head;
+    long tailCache;
+    long pad21, pad22, pad23, pad24, pad25, pad26, pad27;
+
+    final T[] items;
+    final int mask;
+
+    /**
+     * @param capacity minimum number of items the ring can hold, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked"})
+    public SpscRing(int capacity) {
+        final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        items = (T[])new Object[size];
+        mask = size - 1;
+        head = 0;
+        tail = 0;
+    }
+
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Producer only.
+     * @param x item to add
+     * @return true iff the item was added, false if the ring is full
+     */
+    public boolean offer(T x) {
+        final long t = tail;
+        if (t - headCache == items.length) {
+            headCache = head;
+            if (t - headCache == items.length)
+                return false;
+        }
+        items[(int) t & mask] = x;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return the oldest item, or null if the ring is empty
+     */
+    public T poll() {
+        final long h = head;
+        if (h == tailCache) {
+            tailCache = tail;
+            if (h == tailCache)
+                return null;
+        }
+        final int index = (int) h & mask;
+        T x = items[index];
+        items[index] = null;
+        head = h + 1;
+        return x;
+    }
+}
@@ -17,6 +17,10 @@ class WaitFreeQueue<T> {
         return tail - head;
     }
 
+    public int capacity() {
+        return items.length;
+    }
+
     public void enq(T x) throws FullException {
         if (tail - head == items.length)
             throw new FullException();
@@ -31,6 +35,40 @@ class WaitFreeQueue<T> {
         head++;
         return x;
     }
+
+    /**
+     * Enqueues as many of the first n items as fit, publishing all of them with a single store to tail.
+     * @param xs items to enqueue, in order
+     * @param n number of items in xs
+     * @return the number of items enqueued, which may be 0 if the queue is full
+     */
+    public int enqBatch(T[] xs, int n) {
+        final int t = tail;
+        final int count = Math.min(n, items.length - (t - head));
+        if (count <= 0)
+            return 0;
+        for (int i = 0; i < count; i++)
+            items[(t + i) % items.length] = xs[i];
+        tail = t + count;
+        return count;
+    }
+
+    /**
+     * Dequeues up to max items, releasing all of their slots with a single store to head.
+     * @param xs array to dequeue into, starting at index 0
+     * @param max maximum number of items to dequeue
+     * @return the number of items dequeued, which may be 0 if the queue is empty
+     */
+    public int deqBatch(T[] xs, int max) {
+        final int h = head;
+        final int count = Math.min(max, tail - h);
+        if (count <= 0)
+            return 0;
+        for (int i = 0; i < count; i++)
+            xs[i] = items[(h + i) % items.length];
+        head = h + count;
+        return count;
+    }
 }
 
 
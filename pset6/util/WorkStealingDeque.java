@@ -0,0 +1,139 @@
+package pset6;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded Chase-Lev work-stealing deque.
+ *
+ * The owner pushes and pops at the bottom without any atomic read-modify-write, except when it races a
+ * thief for the last item. Thieves take items from the top with a single CAS each. No locks are taken.
+ */
+class WorkStealingDeque<T> {
+    long pad01, pad02, pad03, pad04, pad05, pad06, pad07;
+
+    // Owner side
+    volatile long bottom;
+    long pad11, pad12, pad13, pad14, pad15, pad16, pad17;
+
+    // Thief side
+    final AtomicLong top = new AtomicLong(0);
+    long pad21, pad22, pad23, pad24, pad25, pad26, pad27;
+
+    final AtomicReferenceArray<T> items;
+    final int mask;
+
+    /**
+     * @param capacity minimum number of items the deque can hold, rounded up to a power of two
+     */
+    public WorkStealingDeque(int capacity) {
+        final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        items = new AtomicReferenceArray<T>(size);
+        mask = size - 1;
+        bottom = 0;
+    }
+
+    /**
+     * @return the number of items, which may be stale by the time it is returned
+     */
+    public int size() {
+        return (int) Math.max(0, bottom - top.get());
+    }
+
+    public int capacity() {
+        return items.length();
+    }
+
+    /**
+     * Owner only.
+     * @param x item to add at the bottom
+     * @return true iff the item was added, false if the deque is full
+     */
+    public boolean push(T x) {
+        final long b = bottom;
+        if (b - top.get() >= items.length())
+            return false;
+        items.set((int) b & mask, x);
+        bottom = b + 1;
+        return true;
+    }
+
+    /**
+     * Owner only.
+     * @return the newest item, or null if the deque is empty
+     */
+    public T pop() {
+        final long b = bottom - 1;
+        bottom = b;
+        final long t = top.get();
+        if (t > b) {
+            bottom = b + 1;
+            return null;
+        }
+        T x = items.get((int) b & mask);
+        if (t == b) {
+            // Last item: whoever moves top first gets it
+            if (!top.compareAndSet(t, t + 1))
+                x = null;
+            bottom = t + 1;
+        }
+        return x;
+    }
+
+    /**
+     * Any thread other than the owner.
+     * @return the oldest item, or null if the deque is empty or another thread took the item first
+     */
+    public T steal() {
+        final long t = top.get();
+        final long b = bottom;
+        if (t >= b)
+            return null;
+        T x = items.get((int) t & mask);
+        if (!top.compareAndSet(t, t + 1))
+            return null;
+        return x;
+    }
+}
+
+class WorkStealingDequeTest {
+    public static void main(String[] args) throws InterruptedException {
+        final int numItems = 1000000;
+        final int numThieves = 3;
+        final WorkStealingDeque<Integer> deque = new WorkStealingDeque<Integer>(64);
+        final long[] sums = new long[numThieves + 1];
+        final PaddedPrimitive<Boolean> done = new PaddedPrimitive<Boolean>(false);
+
+        Thread[] thieves = new Thread[numThieves];
+        for (int i = 0; i < numThieves; i++) {
+            final int id = i;
+            thieves[i] = new Thread(() -> {
+                while (!done.value || deque.size() > 0) {
+                    Integer x = deque.steal();
+                    if (x != null) sums[id] += x;
+                }
+            });
+            thieves[i].start();
+        }
+
+        // The owner pushes every item once and pops whatever the thieves leave
+        for (int i = 1; i <= numItems; i++) {
+            while (!deque.push(i)) {
+                Integer x = deque.pop();
+                if (x != null) sums[numThieves] += x;
+            }
+        }
+        Integer x;
+        while ((x = deque.pop()) != null)
+            sums[numThieves] += x;
+        done.value = true;
+        for (Thread thief : thieves)
+            thief.join();
+
+        long sum = 0;
+        for (long s : sums) sum += s;
+        final long expected = (long) numItems * (numItems + 1) / 2;
+        System.out.println(sum == expected ? "Every item was taken exactly once" :
+                "ERROR: Items sum to " + sum + " instead of " + expected);
+    }
+}
@@ -0,0 +1,73 @@
+package pset6;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads the drivers run their dispatchers and workers on.
+ * Platform: one OS thread each, the way the drivers always ran
+ * Virtual: virtual threads multiplexed over one carrier per core, so a run can have far more consumers than
+ *          cores. Thread.ofVirtual() is looked up by reflection, since these sources build on JDKs without
+ *          it; there the drivers fall back to platform threads and say so.
+ *
+ * Consumers of virtual threads should wait with -Didle=Block: a spinning virtual thread never gives its carrier
+ * to the others.
+ */
+class WorkerThreads {
+
+    public enum Mode {
+        Platform,
+        Virtual
+    }
+
+    static final Mode requested = Mode.valueOf(System.getProperty("threads", "Platform"));  // -Dthreads=
+    static final Mode mode;
+    private static final Object builder;
+    private static final Method unstarted;
+
+    static {
+        Object virtualBuilder = null;
+        Method virtualUnstarted = null;
+        if (requested == Mode.Virtual) {
+            // Read once, when the first virtual thread is created
+            if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null)
+                System.setProperty("jdk.virtualThreadScheduler.parallelism",
+                        Integer.toString(Runtime.getRuntime().availableProcessors()));
+            try {
+                virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+                virtualUnstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            } catch (ReflectiveOperationException e) {
+                virtualBuilder = null;
+                virtualUnstarted = null;
+            }
+        }
+        builder = virtualBuilder;
+        unstarted = virtualUnstarted;
+        mode = unstarted != null ? Mode.Virtual : Mode.Platform;
+    }
+
+    /**
+     * Main thread only, since the virtual thread builder is not thread-safe.
+     * @param task what the thread runs
+     * @return an unstarted thread of the mode in use
+     */
+    public static Thread newThread(Runnable task) {
+        if (unstarted == null)
+            return new Thread(task);
+        try {
+            return (Thread) unstarted.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread", e);
+        }
+    }
+
+    /**
+     * @return the mode in use, and why it differs from the requested one
+     */
+    public static String describe() {
+        if (mode == requested)
+            return "Threads: " + mode + (mode == Mode.Virtual ? " on " +
+                    System.getProperty("jdk.virtualThreadScheduler.parallelism") + " carriers" : "");
+        return "Threads: " + mode + " (virtual threads need Java 21, this is " +
+                System.getProperty("java.version") + ")";
+    }
+}